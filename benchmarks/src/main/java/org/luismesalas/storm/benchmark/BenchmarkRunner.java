@@ -0,0 +1,24 @@
+package org.luismesalas.storm.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always with the GC profiler so allocation rates are reported along with
+ * the times.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.luismesalas.storm.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.luismesalas.storm.util.DocumentReader;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.SyntheticCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of a UTF-8 document with {@link GeneralUtils#readFile} and with {@link DocumentReader}, buffered and memory mapped.
+ *
+ * The file stays in the page cache between iterations, so this measures decoding and copying, not disk access.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReadFileBenchmark {
+
+    @Param({ SyntheticCorpus.ALL_LANGUAGES })
+    String languages;
+
+    @Param({ "10000", "10000000" })
+    int textLength;
+
+    @Param({ "5000" })
+    int vocabularySize;
+
+    File file;
+    DocumentReader bufferedReader;
+    DocumentReader mappedReader;
+
+    @Setup
+    public void setup() throws IOException {
+	file = File.createTempFile("document", ".txt");
+	Files.write(file.toPath(), new SyntheticCorpus(languages, vocabularySize, 42).text(textLength, 7).getBytes(StandardCharsets.UTF_8));
+	bufferedReader = new DocumentReader(0, DocumentReader.POLICY_REJECT, StandardCharsets.ISO_8859_1, Long.MAX_VALUE);
+	mappedReader = new DocumentReader(0, DocumentReader.POLICY_REJECT, StandardCharsets.ISO_8859_1, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+	file.delete();
+    }
+
+    @Benchmark
+    public String readFile() throws IOException {
+	return GeneralUtils.readFile(file.getAbsolutePath());
+    }
+
+    @Benchmark
+    public String documentReaderBuffered() throws IOException {
+	return bufferedReader.read(file);
+    }
+
+    @Benchmark
+    public String documentReaderMapped() throws IOException {
+	return mappedReader.read(file);
+    }
+
+}
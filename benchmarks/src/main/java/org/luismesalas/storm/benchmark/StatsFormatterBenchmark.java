@@ -0,0 +1,104 @@
+package org.luismesalas.storm.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.util.StatsFormatter;
+import org.luismesalas.storm.util.SyntheticCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorting and formatting of the stats of a document, without the file system.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StatsFormatterBenchmark {
+
+    @Param({ SyntheticCorpus.ALL_LANGUAGES })
+    String languages;
+
+    @Param({ "100000", "10000000" })
+    int textLength;
+
+    @Param({ "50000" })
+    int vocabularySize;
+
+    @Param({ "0", "100" })
+    int topK;
+
+    Map<String, Integer> tokensFrequency;
+    List<LanguageSerializable> detectedLanguages;
+    Writer sink;
+
+    @Setup
+    public void setup() {
+	tokensFrequency = new HashMap<String, Integer>();
+	StringTokenizer tokenizer = new StringTokenizer(new SyntheticCorpus(languages, vocabularySize, 42).text(textLength, 7));
+	while (tokenizer.hasMoreTokens()) {
+	    String token = tokenizer.nextToken();
+	    Integer count = tokensFrequency.get(token);
+	    tokensFrequency.put(token, count == null ? 1 : count + 1);
+	}
+
+	detectedLanguages = new ArrayList<LanguageSerializable>();
+	double prob = 0.5;
+	for (String language : languages.split("\\+")) {
+	    detectedLanguages.add(new LanguageSerializable(language, prob));
+	    prob /= 2;
+	}
+
+	sink = new NullWriter();
+    }
+
+    @Benchmark
+    public Writer write() throws IOException {
+	StatsFormatter.write(sink, detectedLanguages, tokensFrequency, 5, topK);
+	return sink;
+    }
+
+    @Benchmark
+    public StatsFormatter.TokenCount[] sortByFrequency() {
+	return StatsFormatter.sortByFrequency(tokensFrequency, topK);
+    }
+
+    // Keeps the formatting cost and drops the output
+    private static class NullWriter extends Writer {
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+    }
+
+}
@@ -0,0 +1,108 @@
+package org.luismesalas.storm.bolt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.luismesalas.storm.util.LanguageProfiles;
+import org.luismesalas.storm.util.SyntheticCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cybozu.labs.langdetect.DetectorFactory;
+import com.cybozu.labs.langdetect.LangDetectException;
+import com.cybozu.labs.langdetect.Language;
+
+/**
+ * Language detection of short and long documents, with the sampling options of {@link LangIdentifier}.
+ *
+ * The profiles bundled in the langdetect jar are used unless a profiles folder is given with {@code -p profilesDir=...}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LangIdentifierBenchmark {
+
+    private static final String PROFILES = "en,es,de,fr,ru,el,zh-cn,ja";
+
+    @Param({ "en", SyntheticCorpus.ALL_LANGUAGES })
+    String languages;
+
+    @Param({ "200", "10000", "1000000" })
+    int textLength;
+
+    @Param({ "5000" })
+    int vocabularySize;
+
+    @Param({ "head", "windows" })
+    String sampling;
+
+    @Param({ "10000" })
+    int maxTextLength;
+
+    @Param({ "0" })
+    int earlyExitLength;
+
+    @Param({ "" })
+    String profilesDir;
+
+    LangIdentifier identifier;
+    String text;
+
+    @Setup
+    public void setup() throws IOException, LangDetectException {
+	String profiles = profilesDir.isEmpty() ? extractBundledProfiles() : profilesDir;
+	LanguageProfiles.load(profiles, PROFILES);
+	DetectorFactory.setSeed(0);
+
+	text = new SyntheticCorpus(languages, vocabularySize, 42).text(textLength, 7);
+
+	identifier = new LangIdentifier();
+	identifier.limit = 0.7;
+	identifier.maxTextLength = maxTextLength;
+	identifier.sampling = sampling;
+	identifier.sampleWindows = 4;
+	identifier.earlyExitLength = earlyExitLength;
+	identifier.earlyExitMargin = 0.1;
+    }
+
+    @Benchmark
+    public ArrayList<Language> detect() throws LangDetectException {
+	return identifier.detectLanguages(identifier.sampleText(text));
+    }
+
+    private static String extractBundledProfiles() throws IOException {
+	Path dir = Files.createTempDirectory("profiles");
+	dir.toFile().deleteOnExit();
+	for (String profile : PROFILES.split(",")) {
+	    InputStream in = LangIdentifierBenchmark.class.getResourceAsStream("/profiles/" + profile);
+	    if (in == null) {
+		throw new IOException("Language profile not bundled: " + profile);
+	    }
+	    try {
+		Path file = dir.resolve(profile);
+		Files.copy(in, file);
+		file.toFile().deleteOnExit();
+	    } finally {
+		in.close();
+	    }
+	}
+	return dir.toString();
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.luismesalas.storm.bolt;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.luismesalas.storm.util.SyntheticCorpus;
+import org.luismesalas.storm.util.TokenTrimmer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tokenization of a whole document and trimming of single tokens.
+ *
+ * The tokenizer is set up the same way {@link TextTokenizer#prepare} does, with the punctuation of the synthetic corpus as non-token
+ * chars.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TextTokenizerBenchmark {
+
+    private static final int TOKENS = 10000;
+
+    @Param({ "en", SyntheticCorpus.ALL_LANGUAGES })
+    String languages;
+
+    @Param({ "10000", "1000000" })
+    int textLength;
+
+    @Param({ "1000", "50000" })
+    int vocabularySize;
+
+    TextTokenizer tokenizer;
+    TokenTrimmer trimmer;
+    String text;
+    String[] tokens;
+
+    @Setup
+    public void setup() {
+	SyntheticCorpus corpus = new SyntheticCorpus(languages, vocabularySize, 42);
+	text = corpus.text(textLength, 7);
+	tokens = corpus.tokens(TOKENS, 11);
+
+	trimmer = TokenTrimmer.compile(Arrays.asList(",", ".", ";", ":", "!", "?", "\"", "(", ")"));
+	tokenizer = new TextTokenizer();
+	tokenizer.limitCharsToExclude = trimmer;
+	tokenizer.asciiLowerCase = true;
+	tokenizer.tokenBuffer = new char[64];
+	tokenizer.tokenBufferView = CharBuffer.wrap(tokenizer.tokenBuffer);
+    }
+
+    @Benchmark
+    public Map<String, Integer> tokenizeText() {
+	return tokenizer.tokenizeText(text);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void trimToken(Blackhole blackhole) {
+	for (String token : tokens) {
+	    blackhole.consume(trimmer.trim(token));
+	}
+    }
+
+}
@@ -0,0 +1,217 @@
+package org.luismesalas.storm.bolt;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.storm.Config;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
+import org.luismesalas.storm.model.LanguageList;
+import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.TokenCounter;
+
+/**
+ * Combines the partial results of the chunks of a file.
+ *
+ * Token counts are added up and language probabilities are averaged, weighted by the number of tokens of each chunk. The merged tuple
+ * is anchored to every chunk, so the spout sees every chunk acked only once the stats of the whole file are written.
+ *
+ * A file retried while the chunks of its previous attempt are still here starts over: the older chunks are failed, and late chunks of
+ * an older attempt are failed as they arrive. A file is complete once every chunk index of its attempt has arrived.
+ */
+public class ChunkMerger extends BaseRichBolt {
+
+    private static final long serialVersionUID = -1693367071250466137L;
+
+    private static final int TICK_FREQ_SECS = 10;
+
+    final static Logger logger = Logger.getLogger(ChunkMerger.class.getName());
+    OutputCollector _collector;
+    long _expireMillis;
+    Map<String, PartialFile> _partials;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
+	_collector = collector;
+	_partials = new HashMap<String, PartialFile>();
+	// Chunks of a file that can't be completed anymore are dropped once the spout has timed them out
+	_expireMillis = GeneralUtils.getConfLong(conf, Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, 30) * 1000;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void execute(Tuple input) {
+
+	if (TupleUtils.isTick(input)) {
+	    expirePartials();
+	    return;
+	}
+
+	String filepath = input.getStringByField("filepath");
+	int chunkCount = input.getIntegerByField("chunkcount");
+	int chunkIndex = input.getIntegerByField("chunkindex");
+	long chunkAttempt = input.getLongByField("chunkattempt");
+
+	try {
+	    List<LanguageSerializable> languages = (List<LanguageSerializable>) input.getValueByField("langarray");
+	    Map<String, Integer> tokensFrequency = (Map<String, Integer>) input.getValueByField("tokensfreq");
+
+	    if (chunkCount <= 1) {
+		_collector.emit(input, new Values(filepath, languages, tokensFrequency));
+		_collector.ack(input);
+		return;
+	    }
+
+	    PartialFile partial = _partials.get(filepath);
+	    if (partial != null && chunkAttempt < partial.attempt) {
+		logger.warning("Dropping chunk of an earlier attempt of file: " + filepath);
+		_collector.fail(input);
+		return;
+	    }
+	    if (partial != null && chunkAttempt > partial.attempt) {
+		logger.warning("Dropping chunks of an earlier attempt of file: " + filepath);
+		failAll(partial.chunks);
+		partial = null;
+	    }
+	    if (partial == null) {
+		partial = new PartialFile(chunkCount, chunkAttempt);
+		_partials.put(filepath, partial);
+	    }
+	    if (partial.received.get(chunkIndex)) {
+		logger.warning("Dropping repeated chunk " + chunkIndex + " of file: " + filepath);
+		_collector.fail(input);
+		return;
+	    }
+	    partial.add(input, chunkIndex, languages, tokensFrequency);
+
+	    if (partial.received.cardinality() == chunkCount) {
+		_partials.remove(filepath);
+		List<LanguageSerializable> mergedLanguages = partial.mergedLanguages();
+		if (mergedLanguages.isEmpty()) {
+		    logger.warning("Could not perform language identification on file: " + filepath);
+		    failAll(partial.chunks);
+		    return;
+		}
+		if (logger.isLoggable(Level.FINE)) {
+		    logger.fine("Merged " + chunkCount + " chunks of file " + filepath);
+		}
+		_collector.emit(partial.chunks, new Values(filepath, mergedLanguages, partial.tokens.toHashMap()));
+		for (Tuple chunk : partial.chunks) {
+		    _collector.ack(chunk);
+		}
+	    }
+
+	} catch (Exception e) {
+	    logger.severe("Exception in ChunkMerger bolt: " + e.getMessage());
+	    PartialFile partial = _partials.remove(filepath);
+	    if (partial != null) {
+		failAll(partial.chunks);
+	    }
+	    if (partial == null || !partial.chunks.contains(input)) {
+		_collector.fail(input);
+	    }
+	}
+
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+	declarer.declare(new Fields("filepath", "langarray", "tokensfreq"));
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+	Map<String, Object> conf = new HashMap<String, Object>();
+	conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, TICK_FREQ_SECS);
+	return conf;
+    }
+
+    private void expirePartials() {
+	long now = System.currentTimeMillis();
+	Iterator<Map.Entry<String, PartialFile>> it = _partials.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<String, PartialFile> entry = it.next();
+	    if (now - entry.getValue().created > _expireMillis) {
+		logger.warning("Dropping incomplete chunks of file: " + entry.getKey());
+		failAll(entry.getValue().chunks);
+		it.remove();
+	    }
+	}
+    }
+
+    private void failAll(List<Tuple> chunks) {
+	for (Tuple chunk : chunks) {
+	    _collector.fail(chunk);
+	}
+    }
+
+    private static class PartialFile {
+	final long created = System.currentTimeMillis();
+	final long attempt;
+	final BitSet received;
+	final List<Tuple> chunks;
+	final TokenCounter tokens = new TokenCounter();
+	final Map<String, double[]> languages = new HashMap<String, double[]>();
+	double totalWeight;
+
+	PartialFile(int chunkCount, long attempt) {
+	    this.attempt = attempt;
+	    received = new BitSet(chunkCount);
+	    chunks = new ArrayList<Tuple>(chunkCount);
+	}
+
+	void add(Tuple chunk, int chunkIndex, List<LanguageSerializable> chunkLanguages, Map<String, Integer> tokensFrequency) {
+	    received.set(chunkIndex);
+	    chunks.add(chunk);
+
+	    long chunkTokens = 0;
+	    for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+		tokens.add(entry.getKey(), entry.getValue());
+		chunkTokens += entry.getValue();
+	    }
+
+	    if (!chunkLanguages.isEmpty()) {
+		double weight = Math.max(1, chunkTokens);
+		totalWeight += weight;
+		for (LanguageSerializable language : chunkLanguages) {
+		    double[] sum = languages.get(language.getLang());
+		    if (sum == null) {
+			sum = new double[1];
+			languages.put(language.getLang(), sum);
+		    }
+		    sum[0] += language.getProb() * weight;
+		}
+	    }
+	}
+
+	List<LanguageSerializable> mergedLanguages() {
+	    List<LanguageSerializable> result = new LanguageList(languages.size());
+	    for (Map.Entry<String, double[]> entry : languages.entrySet()) {
+		result.add(new LanguageSerializable(entry.getKey(), entry.getValue()[0] / totalWeight));
+	    }
+	    Collections.sort(result, new Comparator<LanguageSerializable>() {
+		@Override
+		public int compare(LanguageSerializable o1, LanguageSerializable o2) {
+		    return o2.getProb().compareTo(o1.getProb());
+		}
+	    });
+	    return result;
+	}
+    }
+
+}
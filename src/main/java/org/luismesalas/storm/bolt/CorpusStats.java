@@ -0,0 +1,177 @@
+package org.luismesalas.storm.bolt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.base.BaseWindowedBolt;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.windowing.TupleWindow;
+import org.luismesalas.storm.metric.LatencyHistogram;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.HeavyHitters;
+
+/**
+ * Rolling token and document statistics per language, over the current window and over the whole corpus.
+ *
+ * Tuples come from the corpus stream of {@link TextTokenizer}, grouped by language, so every language is tracked by a single task. The
+ * window aggregates add the tuples entering the window and remove the ones leaving it, the corpus aggregates only add. Storm doesn't
+ * activate empty windows, so snapshots keep the stats of the last window that had tuples. Snapshots are written to the corpus subfolder
+ * of the output folder, one file per language, replaced atomically.
+ */
+public class CorpusStats extends BaseWindowedBolt {
+
+    private static final long serialVersionUID = 3906718246150447721L;
+
+    final static Logger logger = Logger.getLogger(CorpusStats.class.getName());
+    File _snapshotFolder;
+    int _topK;
+    int _sketchWidth;
+    int _sketchDepth;
+    long _snapshotMillis;
+    long _lastSnapshot;
+    Map<String, LanguageStats> _languages;
+    LatencyHistogram _windowLatency;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
+	_snapshotFolder = new File(conf.get("output").toString(), GeneralUtils.CORPUS_FOLDER);
+	_topK = GeneralUtils.getConfInt(conf, "corpus_stats_top_k", 20);
+	_sketchWidth = GeneralUtils.getConfInt(conf, "corpus_stats_sketch_width", 2048);
+	_sketchDepth = GeneralUtils.getConfInt(conf, "corpus_stats_sketch_depth", 4);
+	_snapshotMillis = GeneralUtils.getConfLong(conf, "corpus_stats_snapshot_secs", 60) * 1000;
+	_lastSnapshot = System.currentTimeMillis();
+	_languages = new TreeMap<String, LanguageStats>();
+	_windowLatency = context.registerMetric("window_latency_us", new LatencyHistogram(),
+		GeneralUtils.getConfInt(conf, "metrics_bucket_secs", 60));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void execute(TupleWindow window) {
+	long start = System.nanoTime();
+
+	// Tuples expired while the window was empty are never reported, every tuple being new means nothing else is left
+	boolean onlyNew = window.getNew().size() == window.get().size();
+	if (onlyNew) {
+	    for (LanguageStats stats : _languages.values()) {
+		stats.window = new HeavyHitters(_topK, _sketchWidth, _sketchDepth);
+		stats.windowDocuments = 0;
+	    }
+	}
+
+	for (Tuple tuple : window.getNew()) {
+	    LanguageStats stats = languageStats(tuple.getStringByField("language"));
+	    Map<String, Integer> tokensFrequency = (Map<String, Integer>) tuple.getValueByField("tokensfreq");
+	    int documents = tuple.getIntegerByField("documents");
+	    stats.window.add(tokensFrequency);
+	    stats.corpus.add(tokensFrequency);
+	    stats.windowDocuments += documents;
+	    stats.windowUpdated = System.currentTimeMillis();
+	    stats.corpusDocuments += documents;
+	}
+	for (Tuple tuple : onlyNew ? Collections.<Tuple> emptyList() : window.getExpired()) {
+	    LanguageStats stats = languageStats(tuple.getStringByField("language"));
+	    stats.window.remove((Map<String, Integer>) tuple.getValueByField("tokensfreq"));
+	    stats.windowDocuments -= tuple.getIntegerByField("documents");
+	    stats.windowUpdated = System.currentTimeMillis();
+	}
+
+	if (System.currentTimeMillis() - _lastSnapshot >= _snapshotMillis) {
+	    writeSnapshots();
+	}
+	_windowLatency.record((System.nanoTime() - start) / 1000);
+    }
+
+    @Override
+    public void cleanup() {
+	writeSnapshots();
+    }
+
+    private LanguageStats languageStats(String language) {
+	LanguageStats stats = _languages.get(language);
+	if (stats == null) {
+	    stats = new LanguageStats(new HeavyHitters(_topK, _sketchWidth, _sketchDepth), new HeavyHitters(_topK, _sketchWidth,
+		    _sketchDepth));
+	    _languages.put(language, stats);
+	}
+	return stats;
+    }
+
+    private void writeSnapshots() {
+	_lastSnapshot = System.currentTimeMillis();
+	if (!_snapshotFolder.exists()) {
+	    _snapshotFolder.mkdirs();
+	}
+	for (Map.Entry<String, LanguageStats> entry : _languages.entrySet()) {
+	    try {
+		writeSnapshot(entry.getKey(), entry.getValue());
+	    } catch (IOException e) {
+		logger.severe("Can't write corpus stats of language " + entry.getKey() + ": " + e.getMessage());
+	    }
+	}
+    }
+
+    private void writeSnapshot(String language, LanguageStats stats) throws IOException {
+	File snapshot = new File(_snapshotFolder, language + ".txt");
+	File tmp = new File(_snapshotFolder, "." + language + ".txt.tmp");
+
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("Writing corpus stats to file: " + snapshot.getPath());
+	}
+	Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+	try {
+	    writer.write("Corpus stats for language " + language + "\n\n");
+	    writer.write("Window updated: " + new Date(stats.windowUpdated) + "\n");
+	    writer.write("Window documents: " + stats.windowDocuments + "\n");
+	    writer.write("Window tokens: " + stats.window.getTotal() + "\n");
+	    writer.write("Corpus documents: " + stats.corpusDocuments + "\n");
+	    writer.write("Corpus tokens: " + stats.corpus.getTotal() + "\n\n");
+	    writeTop(writer, "Window top tokens", stats.window);
+	    writer.write('\n');
+	    writeTop(writer, "Corpus top tokens", stats.corpus);
+	} finally {
+	    writer.close();
+	}
+	if (!tmp.renameTo(snapshot)) {
+	    throw new IOException("Can't replace " + snapshot.getPath());
+	}
+    }
+
+    private static void writeTop(Writer writer, String title, HeavyHitters heavyHitters) throws IOException {
+	writer.write(title);
+	writer.write("\n\n");
+	for (HeavyHitters.Candidate candidate : heavyHitters.top()) {
+	    writer.write(candidate.getToken());
+	    writer.write(": ");
+	    writer.write(Long.toString(candidate.getEstimate()));
+	    writer.write('\n');
+	}
+    }
+
+    private static class LanguageStats {
+	HeavyHitters window;
+	final HeavyHitters corpus;
+	long windowDocuments;
+	long windowUpdated;
+	long corpusDocuments;
+
+	LanguageStats(HeavyHitters window, HeavyHitters corpus) {
+	    this.window = window;
+	    this.corpus = corpus;
+	}
+    }
+
+}
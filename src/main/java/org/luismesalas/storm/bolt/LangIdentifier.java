@@ -1,8 +1,10 @@
 package org.luismesalas.storm.bolt;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.storm.task.OutputCollector;
@@ -12,7 +14,12 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.luismesalas.storm.metric.LatencyHistogram;
+import org.luismesalas.storm.metric.RateMetric;
+import org.luismesalas.storm.model.LanguageList;
 import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.LanguageProfiles;
 
 import com.cybozu.labs.langdetect.Detector;
 import com.cybozu.labs.langdetect.DetectorFactory;
@@ -24,16 +31,41 @@ public class LangIdentifier extends BaseRichBolt {
     private static final long serialVersionUID = 6224344161122150174L;
 
     final static Logger logger = Logger.getLogger(LangIdentifier.class.getName());
+    private static final String SAMPLING_HEAD = "head";
+    private static final String SAMPLING_WINDOWS = "windows";
+    // Furthest a window edge is moved looking for whitespace, text without spaces is cut where the window falls
+    private static final int MAX_WORD_LENGTH = 32;
+
     OutputCollector _collector;
     Double limit;
+    int maxTextLength;
+    String sampling;
+    int sampleWindows;
+    int earlyExitLength;
+    double earlyExitMargin;
+    boolean contentByReference;
+    LatencyHistogram executeLatency;
+    RateMetric filesRate;
+    RateMetric charsRate;
 
     @Override
     public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
 	try {
 	    _collector = collector;
-	    DetectorFactory.loadProfile(conf.get("lang_profiles").toString());
+	    int bucketSecs = GeneralUtils.getConfInt(conf, "metrics_bucket_secs", 60);
+	    executeLatency = context.registerMetric("execute_latency_us", new LatencyHistogram(), bucketSecs);
+	    filesRate = context.registerMetric("files_per_sec", new RateMetric(), bucketSecs);
+	    charsRate = context.registerMetric("chars_per_sec", new RateMetric(), bucketSecs);
+	    LanguageProfiles.load(conf.get("lang_profiles").toString(), GeneralUtils.getConfString(conf, "lang_subset", null));
 	    limit = Double.parseDouble(conf.get("limit").toString());
-	} catch (LangDetectException e) {
+	    maxTextLength = GeneralUtils.getConfInt(conf, "max_text_length", 10000);
+	    sampling = GeneralUtils.getConfString(conf, "text_sampling", SAMPLING_HEAD);
+	    sampleWindows = Math.max(1, GeneralUtils.getConfInt(conf, "sample_windows", 4));
+	    earlyExitLength = GeneralUtils.getConfInt(conf, "early_exit_length", 0);
+	    earlyExitMargin = GeneralUtils.getConfDouble(conf, "early_exit_margin", 0.1);
+	    contentByReference = GeneralUtils.CONTENT_BY_REFERENCE.equals(GeneralUtils.getConfString(conf, "content_passing",
+		    GeneralUtils.CONTENT_INLINE));
+	} catch (LangDetectException | IOException e) {
 	    logger.severe("Error on inicialization on LangIdentifier bolt: " + e.getMessage());
 	    e.printStackTrace();
 	}
@@ -41,34 +73,40 @@ public class LangIdentifier extends BaseRichBolt {
 
     @Override
     public void execute(Tuple input) {
+	long start = System.nanoTime();
+	process(input);
+	executeLatency.record((System.nanoTime() - start) / 1000);
+    }
 
-	String content = input.getString(0);
-	String filepath = input.getString(1);
+    @SuppressWarnings("unchecked")
+    private void process(Tuple input) {
 
-	try {
+	if (GeneralUtils.BATCH_STREAM.equals(input.getSourceStreamId())) {
+	    executeBatch((List<String>) input.getValueByField("contents"), (List<String>) input.getValueByField("filepaths"), input);
+	    return;
+	}
 
-	    Detector detector = DetectorFactory.create();
-	    detector.append(content);
-	    detector.detect();
-	    ArrayList<Language> languages = detector.getProbabilities();
-	    List<LanguageSerializable> languagesList = new ArrayList<LanguageSerializable>();
+	String content = input.getStringByField("content");
+	String filepath = input.getStringByField("filepath");
+	Integer chunkIndex = input.getIntegerByField("chunkindex");
+	Integer chunkCount = input.getIntegerByField("chunkcount");
+	Object chunkAttempt = input.getValueByField("chunkattempt");
+	boolean chunked = chunkCount > 1;
+	if (chunkIndex == 0) {
+	    filesRate.incr();
+	}
 
-	    if (languages != null && languages.size() > 0) {
-		for (Language language : languages) {
-		    languagesList.add(new LanguageSerializable(language.lang, language.prob));
-		}
+	try {
 
-		if (languages.get(0).prob >= limit) {
-		    logger.info("Language " + languages.get(0).lang + " identified for file " + filepath + " with a probability of "
-			    + languages.get(0).prob);
-		} else {
-		    logger.info("Could not identify language for file: " + filepath + ". Ambiguous file.");
-		}
+	    List<LanguageSerializable> languagesList = identify(content, filepath, chunked);
 
-		_collector.emit(input, new Values(content, filepath, languagesList));
+	    if (languagesList != null) {
+		// In reference mode the tokenizer reads the content again from the input file instead of receiving a copy. Chunks always
+		// carry their content. The top language lets the tokenizers be grouped by language.
+		_collector.emit(input, new Values(contentByReference && !chunked ? null : content, filepath, languagesList, chunkIndex,
+			chunkCount, chunkAttempt, languagesList.isEmpty() ? "" : languagesList.get(0).getLang()));
 		_collector.ack(input);
 	    } else {
-		logger.warning("Could not perform language identification on file: " + filepath);
 		_collector.fail(input);
 	    }
 	} catch (Exception e) {
@@ -78,7 +116,137 @@ public class LangIdentifier extends BaseRichBolt {
     }
 
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-	declarer.declare(new Fields("content", "filepath", "langarray"));
+	declarer.declare(new Fields("content", "filepath", "langarray", "chunkindex", "chunkcount", "chunkattempt", "language"));
+	declarer.declareStream(GeneralUtils.BATCH_STREAM, new Fields("contents", "filepaths", "langarrays"));
+    }
+
+    // A batch is failed as a whole if any of its files fails, the spout then retries its files one by one
+    private void executeBatch(List<String> contents, List<String> filepaths, Tuple input) {
+	filesRate.incrBy(filepaths.size());
+	try {
+	    ArrayList<List<LanguageSerializable>> languagesLists = new ArrayList<List<LanguageSerializable>>(filepaths.size());
+	    for (int i = 0; i < filepaths.size(); i++) {
+		List<LanguageSerializable> languagesList = identify(contents.get(i), filepaths.get(i), false);
+		if (languagesList == null) {
+		    _collector.fail(input);
+		    return;
+		}
+		languagesLists.add(languagesList);
+	    }
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Languages identified for a batch of " + filepaths.size() + " files");
+	    }
+	    _collector.emit(GeneralUtils.BATCH_STREAM, input, new Values(contentByReference ? null : contents, filepaths, languagesLists));
+	    _collector.ack(input);
+	} catch (Exception e) {
+	    logger.severe("Exception in LangIdentifier bolt: " + e.getMessage());
+	    _collector.fail(input);
+	}
+    }
+
+    /**
+     * @return the detected languages, empty for a chunk without language features, or null if the language of the file could not be
+     *         identified
+     */
+    private List<LanguageSerializable> identify(String content, String filepath, boolean chunked) throws LangDetectException {
+	ArrayList<Language> languages = null;
+	charsRate.incrBy(content.length());
+	try {
+	    languages = detectLanguages(sampleText(content));
+	} catch (LangDetectException e) {
+	    if (!chunked) {
+		throw e;
+	    }
+	}
+	List<LanguageSerializable> languagesList = new LanguageList();
+
+	if (languages != null && languages.size() > 0) {
+	    for (Language language : languages) {
+		languagesList.add(new LanguageSerializable(language.lang, language.prob));
+	    }
+
+	    if (logger.isLoggable(Level.FINE)) {
+		if (languages.get(0).prob >= limit) {
+		    logger.fine("Language " + languages.get(0).lang + " identified for file " + filepath + " with a probability of "
+			    + languages.get(0).prob);
+		} else {
+		    logger.fine("Could not identify language for file: " + filepath + ". Ambiguous file.");
+		}
+	    }
+	    return languagesList;
+	} else if (chunked) {
+	    // A chunk without language features, the languages of the rest of the chunks are used for the whole file
+	    return languagesList;
+	} else {
+	    logger.warning("Could not perform language identification on file: " + filepath);
+	    return null;
+	}
+    }
+
+    ArrayList<Language> detectLanguages(String text) throws LangDetectException {
+	// Documents whose language is already clear on a short prefix skip the full sample
+	if (earlyExitLength > 0 && text.length() > earlyExitLength) {
+	    ArrayList<Language> languages = getProbabilities(text.substring(0, earlyExitLength));
+	    if (languages != null && languages.size() > 0 && languages.get(0).prob >= limit + earlyExitMargin) {
+		return languages;
+	    }
+	}
+	return getProbabilities(text);
+    }
+
+    private ArrayList<Language> getProbabilities(String text) throws LangDetectException {
+	// Detector instances can't be reset, but they are cheap to create: the profiles are shared by DetectorFactory and most of the
+	// cost is in appending the text, which is capped by sampleText
+	Detector detector = DetectorFactory.create();
+	detector.setMaxTextLength(text.length());
+	detector.append(text);
+	detector.detect();
+	return detector.getProbabilities();
+    }
+
+    String sampleText(String content) {
+	if (maxTextLength <= 0 || content.length() <= maxTextLength) {
+	    return content;
+	}
+	if (!SAMPLING_WINDOWS.equals(sampling) || sampleWindows == 1) {
+	    return content.substring(0, maxTextLength);
+	}
+
+	// Evenly spaced windows, the first one at the beginning of the document, cut on nearby whitespace so no token is split
+	int windowLength = maxTextLength / sampleWindows;
+	int maxShift = Math.min(MAX_WORD_LENGTH, windowLength / 4);
+	long stride = (content.length() - windowLength) / (sampleWindows - 1);
+	StringBuilder sample = new StringBuilder(maxTextLength + sampleWindows);
+	for (int i = 0; i < sampleWindows; i++) {
+	    int begin = (int) (i * stride);
+	    int end = begin + windowLength;
+	    if (i > 0) {
+		begin = windowBegin(content, begin, maxShift);
+	    }
+	    if (end < content.length()) {
+		end = windowEnd(content, end, maxShift);
+	    }
+	    sample.append(content, begin, end).append(' ');
+	}
+	return sample.toString();
+    }
+
+    private static int windowBegin(String content, int begin, int maxShift) {
+	for (int i = begin; i < begin + maxShift; i++) {
+	    if (Character.isWhitespace(content.charAt(i))) {
+		return i;
+	    }
+	}
+	return Character.isLowSurrogate(content.charAt(begin)) ? begin + 1 : begin;
+    }
+
+    private static int windowEnd(String content, int end, int maxShift) {
+	for (int i = end; i > end - maxShift; i--) {
+	    if (Character.isWhitespace(content.charAt(i))) {
+		return i;
+	    }
+	}
+	return end > 0 && Character.isHighSurrogate(content.charAt(end - 1)) ? end - 1 : end;
     }
 
 }
@@ -1,27 +1,42 @@
 package org.luismesalas.storm.bolt;
 
 import java.io.File;
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import org.apache.storm.shade.org.apache.commons.io.FileUtils;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.metric.api.MultiCountMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.TupleUtils;
+import org.luismesalas.storm.metric.LatencyHistogram;
+import org.luismesalas.storm.metric.RateMetric;
 import org.luismesalas.storm.model.LanguageSerializable;
 import org.luismesalas.storm.util.GeneralUtils;
-
+import org.luismesalas.storm.util.StatsStore;
+import org.luismesalas.storm.util.StatsWriterPool;
+
+/**
+ * Writes the stats of every file to the folder of its language, or to the segments of its language with {@code output_store=segments}.
+ *
+ * With {@code stats_writer_threads} greater than 0 the files are written by a {@link StatsWriterPool} and tuples are acked once their
+ * files are synced, on the next tick tuple or when a writer gathers {@code stats_writer_group_files} files. When the writer queue is full
+ * the executor waits for room, which holds back its input queue and lets Storm apply backpressure. Stores that buffer their records,
+ * like the segments one, get the tuples acked once they are flushed, on the next tick tuple or when the store asks for it.
+ */
 public class StatsToFile extends BaseRichBolt {
 
     private static final int NUM_LANGUAGES_TOSHOW = 5;
+    private static final long OFFER_WAIT_MILLIS = 10;
+    private static final long COMMIT_WAIT_MILLIS = 500;
 
     private static final long serialVersionUID = -5591869036995183101L;
 
@@ -30,61 +45,116 @@ public class StatsToFile extends BaseRichBolt {
     String _inputPath;
     String _outputPath;
     Double _limit;
+    int _topK;
+    LatencyHistogram _executeLatency;
+    RateMetric _filesRate;
+    MultiCountMetric _languages;
+    StatsWriterPool<Tuple> _writer;
+    StatsStore _store;
+    List<Tuple> _unflushed;
 
     @Override
     public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
 	try {
 	    _collector = collector;
+	    int bucketSecs = GeneralUtils.getConfInt(conf, "metrics_bucket_secs", 60);
+	    _executeLatency = context.registerMetric("execute_latency_us", new LatencyHistogram(), bucketSecs);
+	    _filesRate = context.registerMetric("files_per_sec", new RateMetric(), bucketSecs);
+	    // Files written to every language folder, ambiguous included
+	    _languages = context.registerMetric("languages", new MultiCountMetric(), bucketSecs);
 	    _inputPath = conf.get("input").toString();
 	    _outputPath = conf.get("output").toString();
 	    _limit = Double.parseDouble(conf.get("limit").toString());
+	    _topK = GeneralUtils.getConfInt(conf, "stats_top_k", 0);
+
+	    _unflushed = new ArrayList<Tuple>();
+	    int writerThreads = GeneralUtils.getConfInt(conf, "stats_writer_threads", 0);
+	    if (writerThreads > 0 && !StatsStore.FILES.equals(GeneralUtils.getConfString(conf, "output_store", StatsStore.FILES))) {
+		logger.warning("stats_writer_threads only applies to the files output store");
+		writerThreads = 0;
+	    }
+	    if (writerThreads > 0) {
+		_writer = new StatsWriterPool<Tuple>(writerThreads, GeneralUtils.getConfInt(conf, "stats_writer_queue_size", 256),
+			GeneralUtils.getConfInt(conf, "stats_writer_group_files", 64), NUM_LANGUAGES_TOSHOW, _topK);
+		_writer.start();
+		context.registerMetric("writer", new IMetric() {
+		    @Override
+		    public Object getValueAndReset() {
+			return _writer.getCounters();
+		    }
+		}, bucketSecs);
+	    } else {
+		_store = StatsStore.fromConf(conf, "task-" + context.getThisTaskId(), NUM_LANGUAGES_TOSHOW, _topK);
+		context.registerMetric("store", new IMetric() {
+		    @Override
+		    public Object getValueAndReset() {
+			return _store.getCounters();
+		    }
+		}, bucketSecs);
+	    }
 	} catch (Exception e) {
 	    logger.severe("Error on inicialization on StatsToFile bolt: " + e.getMessage());
 	    e.printStackTrace();
 	}
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void execute(Tuple input) {
-
-	@SuppressWarnings("unused")
-	String content = input.getString(0);
-	String filepath = input.getString(1);
-	Object langarrayObj = input.getValue(2);
-	Object tokensFrequencyObj = input.getValue(3);
-
-	try {
-	    List<LanguageSerializable> languages = (ArrayList<LanguageSerializable>) langarrayObj;
-	    Map<String, Integer> tokensFrequency = (HashMap<String, Integer>) tokensFrequencyObj;
-
-	    logger.info("Generating language stats for file: " + filepath);
-	    String languageInfo = getLanguageSummary(languages);
-	    logger.info("Generating tokens stats for file: " + filepath);
-	    String fequencyInfo = getOrderedTokensFrequencySummary(tokensFrequency);
-
-	    String langSubfolder = "ambiguous";
-	    if (languages.get(0).getProb() >= _limit) {
-		langSubfolder = languages.get(0).getLang();
+	if (TupleUtils.isTick(input)) {
+	    if (_writer != null) {
+		// Waiting for the writers lets an idle stream ack what this tick commits now instead of on the next tick
+		try {
+		    _writer.awaitCommit(_writer.commit(), COMMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+		completeWritten();
+	    } else if (!_unflushed.isEmpty()) {
+		flushStore();
 	    }
+	    return;
+	}
 
-	    String outputSubFolderPath = _outputPath + File.separator + langSubfolder;
+	long start = System.nanoTime();
+	process(input);
+	_executeLatency.record((System.nanoTime() - start) / 1000);
+    }
 
-	    String fileOutPath = GeneralUtils.calculateDeltaPath(_inputPath, outputSubFolderPath, filepath) + "_stats.txt";
-	    File fileOut = new File(fileOutPath);
+    @SuppressWarnings("unchecked")
+    private void process(Tuple input) {
 
-	    if (!fileOut.getParentFile().exists()) {
-		fileOut.getParentFile().mkdirs();
+	try {
+	    List<StatsWriterPool.StatsFile> statsFiles = new ArrayList<StatsWriterPool.StatsFile>();
+	    if (GeneralUtils.BATCH_STREAM.equals(input.getSourceStreamId())) {
+		List<String> filepaths = (List<String>) input.getValueByField("filepaths");
+		List<List<LanguageSerializable>> languagesLists = (List<List<LanguageSerializable>>) input.getValueByField("langarrays");
+		List<Map<String, Integer>> tokensFrequencies = (List<Map<String, Integer>>) input.getValueByField("tokensfreqs");
+		for (int i = 0; i < filepaths.size(); i++) {
+		    statsFiles.add(statsFile(filepaths.get(i), languagesLists.get(i), tokensFrequencies.get(i)));
+		}
+	    } else {
+		statsFiles.add(statsFile(input.getStringByField("filepath"), (ArrayList<LanguageSerializable>) input
+			.getValueByField("langarray"), (HashMap<String, Integer>) input.getValueByField("tokensfreq")));
 	    }
 
-	    logger.info("Writing to file: " + fileOutPath);
-	    FileUtils.writeStringToFile(fileOut, languageInfo + "\n\n" + fequencyInfo, Charset.forName("UTF-8"));
+	    if (_writer != null) {
+		submit(input, statsFiles);
+		return;
+	    }
 
-	    _collector.ack(input);
+	    for (StatsWriterPool.StatsFile statsFile : statsFiles) {
+		_store.write(statsFile);
+	    }
+	    _unflushed.add(input);
+	    if (_store.isFlushDue()) {
+		flushStore();
+	    }
 
 	} catch (Exception e) {
 	    logger.severe("Exception in StatsToFile bolt: " + e.getMessage());
 	    _collector.fail(input);
+	    // A failed store may have dropped the buffered records of other tuples too
+	    failUnflushed();
 	}
 
     }
@@ -93,35 +163,73 @@ public class StatsToFile extends BaseRichBolt {
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private String getOrderedTokensFrequencySummary(Map<String, Integer> tokensFrequency) {
-	String result = "Tokens count stats\n\n";
-	Object[] a = tokensFrequency.entrySet().toArray();
-
-	Arrays.sort(a, new Comparator() {
-	    public int compare(Object o1, Object o2) {
-		int c = ((Map.Entry<String, Integer>) o2).getValue().compareTo(((Map.Entry<String, Integer>) o1).getValue());
-		if (c == 0) {
-		    c = ((Map.Entry<String, Integer>) o2).getKey().compareTo(((Map.Entry<String, Integer>) o1).getKey());
-		}
-		return c;
+    @Override
+    public void cleanup() {
+	if (_writer != null) {
+	    _writer.stop();
+	}
+	if (_store != null) {
+	    try {
+		_store.close();
+	    } catch (IOException e) {
+		logger.severe("Exception closing stats store: " + e.getMessage());
 	    }
-	});
+	}
+    }
 
-	for (Object e : a) {
-	    result += ((Map.Entry<String, Integer>) e).getKey() + ": " + ((Map.Entry<String, Integer>) e).getValue() + "\n";
+    private void flushStore() {
+	try {
+	    _store.flush();
+	} catch (IOException e) {
+	    logger.severe("Exception flushing stats store: " + e.getMessage());
+	    failUnflushed();
+	    return;
+	}
+	for (Tuple tuple : _unflushed) {
+	    _collector.ack(tuple);
 	}
-	return result;
+	_unflushed.clear();
     }
 
-    private String getLanguageSummary(List<LanguageSerializable> languages) {
-	String result = "Language probability stats\n\n";
+    private void failUnflushed() {
+	for (Tuple tuple : _unflushed) {
+	    _collector.fail(tuple);
+	}
+	_unflushed.clear();
+    }
 
-	for (int i = 0; (i < languages.size() && i < NUM_LANGUAGES_TOSHOW); i++) {
-	    result += languages.get(i).getLang() + ": " + languages.get(i).getProb() + "\n";
+    // Waiting for room in the queue keeps acking the tuples already written
+    private void submit(Tuple input, List<StatsWriterPool.StatsFile> statsFiles) throws InterruptedException {
+	completeWritten();
+	while (!_writer.offer(input, statsFiles, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+	    completeWritten();
 	}
+    }
+
+    private void completeWritten() {
+	Tuple tuple;
+	while ((tuple = _writer.pollDurable()) != null) {
+	    _collector.ack(tuple);
+	}
+	while ((tuple = _writer.pollFailed()) != null) {
+	    _collector.fail(tuple);
+	}
+    }
+
+    private StatsWriterPool.StatsFile statsFile(String filepath, List<LanguageSerializable> languages,
+	    Map<String, Integer> tokensFrequency) {
+	String langSubfolder = "ambiguous";
+	if (languages.get(0).getProb() >= _limit) {
+	    langSubfolder = languages.get(0).getLang();
+	}
+
+	_filesRate.incr();
+	_languages.scope(langSubfolder).incr();
+
+	String outputSubFolderPath = _outputPath + File.separator + langSubfolder;
 
-	return result;
+	String fileOutPath = GeneralUtils.calculateDeltaPath(_inputPath, outputSubFolderPath, filepath) + GeneralUtils.STATS_SUFFIX;
+	return new StatsWriterPool.StatsFile(filepath, langSubfolder, fileOutPath, languages, tokensFrequency);
     }
 
 }
@@ -1,16 +1,13 @@
 package org.luismesalas.storm.bolt;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.storm.task.OutputCollector;
@@ -20,20 +17,63 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.luismesalas.storm.metric.LatencyHistogram;
+import org.luismesalas.storm.metric.RateMetric;
+import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.util.DedupCache;
+import org.luismesalas.storm.util.DocumentReader;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.LanguageTokenizers;
+import org.luismesalas.storm.util.StopwordSet;
+import org.luismesalas.storm.util.TokenCounter;
+import org.luismesalas.storm.util.TokenTrimmer;
+import org.luismesalas.storm.util.TokenizerStrategy;
 
+/**
+ * Counts the tokens of every document with the tokenizer strategy of its top language, see {@link LanguageTokenizers}.
+ */
 public class TextTokenizer extends BaseRichBolt {
 
     private static final long serialVersionUID = 6224344161122150174L;
 
+    private static final TokenizerStrategy WHITESPACE = new TokenizerStrategy("", false, StopwordSet.EMPTY);
+
     final static Logger logger = Logger.getLogger(TextTokenizer.class.getName());
     OutputCollector _collector;
-    Set<String> limitCharsToExclude;
+    TokenTrimmer limitCharsToExclude;
+    LanguageTokenizers tokenizers;
+    boolean asciiLowerCase;
+    char[] tokenBuffer;
+    CharBuffer tokenBufferView;
+    DocumentReader documentReader;
+    LatencyHistogram executeLatency;
+    RateMetric filesRate;
+    RateMetric charsRate;
+    boolean corpusStats;
+    DedupCache dedup;
+    double limit;
 
     @Override
     public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, OutputCollector collector) {
 	try {
 	    _collector = collector;
-	    limitCharsToExclude = loadCharsToExcludeFromFile(conf.get("nontoken_file").toString());
+	    int bucketSecs = GeneralUtils.getConfInt(conf, "metrics_bucket_secs", 60);
+	    executeLatency = context.registerMetric("execute_latency_us", new LatencyHistogram(), bucketSecs);
+	    filesRate = context.registerMetric("files_per_sec", new RateMetric(), bucketSecs);
+	    charsRate = context.registerMetric("chars_per_sec", new RateMetric(), bucketSecs);
+	    tokenizers = LanguageTokenizers.getInstance(conf);
+	    limitCharsToExclude = tokenizers.getTrimmer();
+	    // ASCII tokens are lowercased in place unless the default locale has special casing rules for them
+	    String language = Locale.getDefault().getLanguage();
+	    asciiLowerCase = !"tr".equals(language) && !"az".equals(language);
+	    tokenBuffer = new char[64];
+	    tokenBufferView = CharBuffer.wrap(tokenBuffer);
+	    documentReader = DocumentReader.fromConf(conf);
+	    corpusStats = GeneralUtils.getConfBoolean(conf, "corpus_stats_enabled", false);
+	    limit = GeneralUtils.getConfDouble(conf, "limit", 0);
+	    if (GeneralUtils.getConfBoolean(conf, "dedup_enabled", false)) {
+		dedup = DedupCache.getInstance(conf);
+	    }
 	} catch (IOException e) {
 	    logger.severe("Error on inicialization on TextTokenizer bolt: " + e.getMessage());
 	    e.printStackTrace();
@@ -42,20 +82,34 @@ public class TextTokenizer extends BaseRichBolt {
 
     @Override
     public void execute(Tuple input) {
+	long start = System.nanoTime();
+	process(input);
+	executeLatency.record((System.nanoTime() - start) / 1000);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void process(Tuple input) {
+
+	if (GeneralUtils.BATCH_STREAM.equals(input.getSourceStreamId())) {
+	    executeBatch((List<String>) input.getValueByField("contents"), (List<String>) input.getValueByField("filepaths"),
+		    input.getValueByField("langarrays"), input);
+	    return;
+	}
 
 	String content = input.getString(0);
 	String filepath = input.getString(1);
 	Object langarrayObj = input.getValue(2);
+	Object chunkIndex = input.getValueByField("chunkindex");
+	Object chunkCount = input.getValueByField("chunkcount");
+	Object chunkAttempt = input.getValueByField("chunkattempt");
+	if (Integer.valueOf(0).equals(chunkIndex)) {
+	    filesRate.incr();
+	}
 
 	try {
-	    Map<String, Integer> tokensFrequency = tokenizeText(content);
-
-	    if (!tokensFrequency.isEmpty()) {
-		logger.info("#Tokens identified for document " + filepath + ": " + tokensFrequency.size());
-	    } else {
-		logger.info("No tokens identified for document " + filepath);
-	    }
-	    _collector.emit(input, new Values(content, filepath, langarrayObj, tokensFrequency));
+	    Map<String, Integer> tokensFrequency = tokenizeDocument(content, filepath, langarrayObj, Integer.valueOf(1).equals(chunkCount));
+	    _collector.emit(input, new Values(filepath, langarrayObj, tokensFrequency, chunkIndex, chunkCount, chunkAttempt));
+	    emitCorpus(langarrayObj, tokensFrequency, Integer.valueOf(0).equals(chunkIndex) ? 1 : 0);
 	    _collector.ack(input);
 
 	} catch (Exception e) {
@@ -66,85 +120,161 @@ public class TextTokenizer extends BaseRichBolt {
     }
 
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
-	declarer.declare(new Fields("content", "filepath", "langarray", "tokensfreq"));
+	declarer.declare(new Fields("filepath", "langarray", "tokensfreq", "chunkindex", "chunkcount", "chunkattempt"));
+	declarer.declareStream(GeneralUtils.BATCH_STREAM, new Fields("filepaths", "langarrays", "tokensfreqs"));
+	declarer.declareStream(GeneralUtils.CORPUS_STREAM, new Fields("language", "tokensfreq", "documents"));
     }
 
-    private Map<String, Integer> tokenizeText(String content) {
-	Map<String, Integer> result = new HashMap<String, Integer>();
-	StringTokenizer stringTokenizer = new StringTokenizer(content.toLowerCase());
-	while (stringTokenizer.hasMoreElements()) {
-	    String token = stringTokenizer.nextElement().toString();
-	    token = cleanUpToken(token);
-	    if (!"".equals(token)) {
-		if (result.containsKey(token)) {
-		    Integer newCount = result.get(token) + 1;
-		    result.put(token, newCount);
-		} else {
-		    result.put(token, 1);
-		}
+    private void executeBatch(List<String> contents, List<String> filepaths, Object langarraysObj, Tuple input) {
+	filesRate.incrBy(filepaths.size());
+	try {
+	    ArrayList<Map<String, Integer>> tokensFrequencies = new ArrayList<Map<String, Integer>>(filepaths.size());
+	    for (int i = 0; i < filepaths.size(); i++) {
+		tokensFrequencies.add(tokenizeDocument(contents == null ? null : contents.get(i), filepaths.get(i),
+			((List<?>) langarraysObj).get(i), true));
+	    }
+	    _collector.emit(GeneralUtils.BATCH_STREAM, input, new Values(filepaths, langarraysObj, tokensFrequencies));
+	    for (int i = 0; i < filepaths.size(); i++) {
+		emitCorpus(((List<?>) langarraysObj).get(i), tokensFrequencies.get(i), 1);
 	    }
+	    _collector.ack(input);
+	} catch (Exception e) {
+	    logger.severe("Exception in TextTokenizer bolt: " + e.getMessage());
+	    _collector.fail(input);
 	}
-	return result;
     }
 
-    private Set<String> loadCharsToExcludeFromFile(String path) throws IOException {
-	String line;
-	InputStreamReader streamReader = null;
-	InputStream file = new FileInputStream(path);
-	Set<String> nonTokens = new HashSet<String>();
-
-	streamReader = new InputStreamReader(file, Charset.forName("UTF-8"));
-	BufferedReader bufferedReader = new BufferedReader(streamReader);
-	while ((line = bufferedReader.readLine()) != null && line != "") {
-	    nonTokens.add(line.trim().toLowerCase());
+    // Corpus tuples are not anchored, the window keeps them for longer than their file takes to be processed
+    @SuppressWarnings("unchecked")
+    private void emitCorpus(Object langarrayObj, Map<String, Integer> tokensFrequency, int documents) {
+	if (!corpusStats) {
+	    return;
 	}
-	bufferedReader.close();
-
-	return nonTokens;
+	List<LanguageSerializable> languages = (List<LanguageSerializable>) langarrayObj;
+	// Chunks without language features have no languages at all
+	String language = "ambiguous";
+	if (!languages.isEmpty() && languages.get(0).getProb() >= limit) {
+	    language = languages.get(0).getLang();
+	}
+	_collector.emit(GeneralUtils.CORPUS_STREAM, new Values(language, tokensFrequency, documents));
     }
 
-    private String cleanUpToken(String token) {
+    @SuppressWarnings("unchecked")
+    private Map<String, Integer> tokenizeDocument(String content, String filepath, Object langarrayObj, boolean wholeFile)
+	    throws IOException {
+	if (content == null) {
+	    content = documentReader.read(new File(filepath));
+	}
+	charsRate.incrBy(content.length());
+	List<LanguageSerializable> languages = (List<LanguageSerializable>) langarrayObj;
+	Map<String, Integer> tokensFrequency = tokenizeText(content, tokenizers.forLanguage(languages.isEmpty() ? null : languages.get(0)
+		.getLang()));
 
-	String result = token;
+	// Chunks are not cached, the spout looks up the content of the whole file
+	if (dedup != null && wholeFile) {
+	    dedup.put(DedupCache.hash(content), content.length(), languages, tokensFrequency);
+	}
 
-	while (endsWithExcludedChar(result)) {
-	    if (result.length() > 1) {
-		result = result.substring(0, result.length() - 1);
+	if (logger.isLoggable(Level.FINE)) {
+	    if (!tokensFrequency.isEmpty()) {
+		logger.fine("#Tokens identified for document " + filepath + ": " + tokensFrequency.size());
 	    } else {
-		result = "";
+		logger.fine("No tokens identified for document " + filepath);
 	    }
 	}
-	while (startsWithExcludedChar(result)) {
-	    if (result.length() > 1) {
-		result = result.substring(1, result.length());
-	    } else {
-		result = "";
+	return tokensFrequency;
+    }
+
+    Map<String, Integer> tokenizeText(String content) {
+	return tokenizeText(content, WHITESPACE);
+    }
+
+    Map<String, Integer> tokenizeText(String content, TokenizerStrategy strategy) {
+	StopwordSet stopwords = strategy.getStopwords();
+	TokenCounter counter = new TokenCounter();
+	int length = content.length();
+	int i = 0;
+
+	while (i < length) {
+	    while (i < length && GeneralUtils.isTokenDelimiter(content.charAt(i))) {
+		i++;
+	    }
+	    int begin = i;
+	    boolean ascii = true;
+	    while (i < length && !GeneralUtils.isTokenDelimiter(content.charAt(i))) {
+		ascii &= content.charAt(i) < 0x80;
+		i++;
+	    }
+	    if (begin < i) {
+		if (strategy.isBigrams() && !ascii) {
+		    countBigrams(counter, content, begin, i, stopwords);
+		} else {
+		    countToken(counter, content, begin, i, ascii && asciiLowerCase, stopwords);
+		}
 	    }
 	}
-
-	return result;
+	return counter.toHashMap();
     }
 
-    private boolean endsWithExcludedChar(String text) {
-	boolean result = false;
-	for (String characterToExclude : limitCharsToExclude) {
-	    if (text.endsWith(characterToExclude)) {
-		result = true;
-		break;
+    // Runs of bigram characters are counted as overlapping pairs, or alone when the run is a single character. The rest of the token is
+    // counted as usual.
+    private void countBigrams(TokenCounter counter, String content, int begin, int end, StopwordSet stopwords) {
+	int segmentBegin = begin;
+	int i = begin;
+	while (i < end) {
+	    int codePoint = content.codePointAt(i);
+	    if (!TokenizerStrategy.isBigramCodePoint(codePoint)) {
+		i += Character.charCount(codePoint);
+		continue;
+	    }
+	    if (segmentBegin < i) {
+		countToken(counter, content, segmentBegin, i, false, stopwords);
+	    }
+
+	    int runBegin = i;
+	    int previous = -1;
+	    while (i < end && TokenizerStrategy.isBigramCodePoint(codePoint = content.codePointAt(i))) {
+		int next = i + Character.charCount(codePoint);
+		if (previous >= 0 && !stopwords.contains(content, previous, next)) {
+		    counter.increment(content, previous, next);
+		}
+		previous = i;
+		i = next;
 	    }
+	    if (previous == runBegin && !stopwords.contains(content, runBegin, i)) {
+		counter.increment(content, runBegin, i);
+	    }
+	    segmentBegin = i;
+	}
+	if (segmentBegin < end) {
+	    countToken(counter, content, segmentBegin, end, false, stopwords);
 	}
-	return result;
     }
 
-    private boolean startsWithExcludedChar(String text) {
-	boolean result = false;
-	for (String characterToExclude : limitCharsToExclude) {
-	    if (text.startsWith(characterToExclude)) {
-		result = true;
-		break;
+    private void countToken(TokenCounter counter, String content, int begin, int end, boolean ascii, StopwordSet stopwords) {
+	if (ascii) {
+	    int length = end - begin;
+	    if (tokenBuffer.length < length) {
+		tokenBuffer = new char[Math.max(length, tokenBuffer.length * 2)];
+		tokenBufferView = CharBuffer.wrap(tokenBuffer);
+	    }
+	    for (int j = 0; j < length; j++) {
+		char c = content.charAt(begin + j);
+		tokenBuffer[j] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+	    }
+	    int tokenEnd = limitCharsToExclude.trimEnd(tokenBufferView, 0, length);
+	    int tokenBegin = limitCharsToExclude.trimBegin(tokenBufferView, 0, tokenEnd);
+	    if (tokenBegin < tokenEnd && !stopwords.contains(tokenBufferView, tokenBegin, tokenEnd)) {
+		counter.increment(tokenBuffer, tokenBegin, tokenEnd);
+	    }
+	} else {
+	    String token = content.substring(begin, end).toLowerCase();
+	    int tokenEnd = limitCharsToExclude.trimEnd(token, 0, token.length());
+	    int tokenBegin = limitCharsToExclude.trimBegin(token, 0, tokenEnd);
+	    if (tokenBegin < tokenEnd && !stopwords.contains(token, tokenBegin, tokenEnd)) {
+		counter.increment(token, tokenBegin, tokenEnd);
 	    }
 	}
-	return result;
     }
 
 }
@@ -0,0 +1,84 @@
+package org.luismesalas.storm.metric;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.storm.metric.api.IMetricsConsumer;
+import org.apache.storm.task.IErrorReporter;
+import org.apache.storm.task.TopologyContext;
+
+/**
+ * Appends every metrics snapshot to a local file, one tab separated line per data point: time, worker, component and task, metric
+ * name and value.
+ *
+ * The registration argument is the path of the file, each worker writes to its own machine. Storm's built-in metrics, whose names start
+ * with "__", are left out.
+ */
+public class FileMetricsConsumer implements IMetricsConsumer {
+
+    private static final Logger logger = Logger.getLogger(FileMetricsConsumer.class.getName());
+
+    private Writer _writer;
+    private SimpleDateFormat _dateFormat;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map stormConf, Object registrationArgument, TopologyContext context,
+	    IErrorReporter errorReporter) {
+	_dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+	File file = new File(registrationArgument.toString());
+	try {
+	    if (file.getAbsoluteFile().getParentFile() != null && !file.getAbsoluteFile().getParentFile().exists()) {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+	    }
+	    _writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	} catch (IOException e) {
+	    logger.severe("Can't open metrics file " + file.getAbsolutePath() + ": " + e.getMessage());
+	}
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+	if (_writer == null) {
+	    return;
+	}
+	String prefix = _dateFormat.format(new Date(taskInfo.timestamp * 1000)) + "\t" + taskInfo.srcWorkerHost + ":"
+		+ taskInfo.srcWorkerPort + "\t" + taskInfo.srcComponentId + ":" + taskInfo.srcTaskId + "\t";
+	try {
+	    for (DataPoint dataPoint : dataPoints) {
+		if (dataPoint.name.startsWith("__")) {
+		    continue;
+		}
+		_writer.write(prefix);
+		_writer.write(dataPoint.name);
+		_writer.write('\t');
+		_writer.write(String.valueOf(dataPoint.value));
+		_writer.write('\n');
+	    }
+	    _writer.flush();
+	} catch (IOException e) {
+	    logger.warning("Can't write metrics: " + e.getMessage());
+	}
+    }
+
+    @Override
+    public void cleanup() {
+	if (_writer != null) {
+	    try {
+		_writer.close();
+	    } catch (IOException e) {
+		logger.warning(e.getMessage());
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.luismesalas.storm.metric;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ * Log-linear latency histogram, in the style of HdrHistogram.
+ *
+ * Every power of two is split in {@value #SUB_BUCKETS} linear buckets, so recorded values keep a relative precision of 1/
+ * {@value #SUB_BUCKETS} with a fixed amount of memory and no allocation per record. Percentiles report the highest value of their bucket.
+ * Not thread safe, each executor records into its own instance.
+ */
+public class LatencyHistogram implements IMetric {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] _counts = new long[SUB_BUCKETS * (65 - SUB_BUCKET_BITS)];
+    private long _count;
+    private long _sum;
+    private long _min = Long.MAX_VALUE;
+    private long _max;
+
+    public void record(long value) {
+	if (value < 0) {
+	    value = 0;
+	}
+	_counts[bucket(value)]++;
+	_count++;
+	_sum += value;
+	_min = Math.min(_min, value);
+	_max = Math.max(_max, value);
+    }
+
+    public long getCount() {
+	return _count;
+    }
+
+    public long percentile(double percentile) {
+	long target = Math.max(1, (long) Math.ceil(percentile / 100 * _count));
+	long seen = 0;
+	for (int i = 0; i < _counts.length; i++) {
+	    seen += _counts[i];
+	    if (seen >= target) {
+		return Math.min(_max, highestValue(i));
+	    }
+	}
+	return _max;
+    }
+
+    public void reset() {
+	Arrays.fill(_counts, 0);
+	_count = 0;
+	_sum = 0;
+	_min = Long.MAX_VALUE;
+	_max = 0;
+    }
+
+    /**
+     * @return count, min, mean, p50, p90, p99, p999 and max since the last call, or null if nothing was recorded
+     */
+    @Override
+    public Object getValueAndReset() {
+	if (_count == 0) {
+	    return null;
+	}
+	Map<String, Number> snapshot = new LinkedHashMap<String, Number>();
+	snapshot.put("count", _count);
+	snapshot.put("min", _min);
+	snapshot.put("mean", _sum / _count);
+	snapshot.put("p50", percentile(50));
+	snapshot.put("p90", percentile(90));
+	snapshot.put("p99", percentile(99));
+	snapshot.put("p999", percentile(99.9));
+	snapshot.put("max", _max);
+	reset();
+	return snapshot;
+    }
+
+    static int bucket(long value) {
+	if (value < SUB_BUCKETS) {
+	    return (int) value;
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int shift = exponent - SUB_BUCKET_BITS;
+	return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValue(int bucket) {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+	long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+	return ((subBucket + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.luismesalas.storm.metric;
+
+import org.apache.storm.metric.api.IMetric;
+
+/**
+ * Counter reported as a rate per second over the interval since the last report.
+ */
+public class RateMetric implements IMetric {
+
+    private long _count;
+    private long _since = System.nanoTime();
+
+    public void incr() {
+	_count++;
+    }
+
+    public void incrBy(long increment) {
+	_count += increment;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+	long now = System.nanoTime();
+	double seconds = (now - _since) / 1e9;
+	double rate = seconds > 0 ? _count / seconds : 0;
+	_count = 0;
+	_since = now;
+	return rate;
+    }
+
+}
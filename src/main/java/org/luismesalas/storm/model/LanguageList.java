@@ -0,0 +1,22 @@
+package org.luismesalas.storm.model;
+
+import java.util.ArrayList;
+
+/**
+ * Languages of a document ordered by probability, the type of the langarray tuple field.
+ *
+ * It has a type of its own so that a compact serializer can be registered for it without changing how other lists are serialized.
+ */
+public class LanguageList extends ArrayList<LanguageSerializable> {
+
+    private static final long serialVersionUID = -2470180361328862945L;
+
+    public LanguageList() {
+	super();
+    }
+
+    public LanguageList(int initialCapacity) {
+	super(initialCapacity);
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.luismesalas.storm.model;
+
+import java.util.HashMap;
+
+/**
+ * Token to count map of a document, the type of the tokensfreq tuple field.
+ *
+ * It has a type of its own so that a compact serializer can be registered for it without changing how other maps are serialized.
+ */
+public class TokenFrequencyMap extends HashMap<String, Integer> {
+
+    private static final long serialVersionUID = 8406186510379628437L;
+
+    public TokenFrequencyMap() {
+	super();
+    }
+
+    public TokenFrequencyMap(int initialCapacity) {
+	super(initialCapacity);
+    }
+
+}
@@ -0,0 +1,34 @@
+package org.luismesalas.storm.serialization;
+
+import org.luismesalas.storm.model.LanguageList;
+import org.luismesalas.storm.model.LanguageSerializable;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Kryo serializer of {@link LanguageList}: the number of languages followed by the languages, with no class id per element.
+ */
+public class LanguageListSerializer extends Serializer<LanguageList> {
+
+    @Override
+    public void write(Kryo kryo, Output output, LanguageList languages) {
+	output.writeVarInt(languages.size(), true);
+	for (LanguageSerializable language : languages) {
+	    LanguageSerializer.writeLanguage(output, language);
+	}
+    }
+
+    @Override
+    public LanguageList read(Kryo kryo, Input input, Class<LanguageList> type) {
+	int size = input.readVarInt(true);
+	LanguageList languages = new LanguageList(size);
+	for (int i = 0; i < size; i++) {
+	    languages.add(LanguageSerializer.readLanguage(input));
+	}
+	return languages;
+    }
+
+}
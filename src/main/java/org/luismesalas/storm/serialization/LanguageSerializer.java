@@ -0,0 +1,39 @@
+package org.luismesalas.storm.serialization;
+
+import org.luismesalas.storm.model.LanguageSerializable;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Kryo serializer of {@link LanguageSerializable}: the language code and the probability as a raw double, with no class names.
+ */
+public class LanguageSerializer extends Serializer<LanguageSerializable> {
+
+    @Override
+    public void write(Kryo kryo, Output output, LanguageSerializable language) {
+	writeLanguage(output, language);
+    }
+
+    @Override
+    public LanguageSerializable read(Kryo kryo, Input input, Class<LanguageSerializable> type) {
+	return readLanguage(input);
+    }
+
+    static void writeLanguage(Output output, LanguageSerializable language) {
+	output.writeString(language.getLang());
+	output.writeBoolean(language.getProb() != null);
+	if (language.getProb() != null) {
+	    output.writeDouble(language.getProb());
+	}
+    }
+
+    static LanguageSerializable readLanguage(Input input) {
+	String lang = input.readString();
+	Double prob = input.readBoolean() ? input.readDouble() : null;
+	return new LanguageSerializable(lang, prob);
+    }
+
+}
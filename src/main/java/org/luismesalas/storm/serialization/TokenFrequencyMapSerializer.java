@@ -0,0 +1,52 @@
+package org.luismesalas.storm.serialization;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.luismesalas.storm.model.TokenFrequencyMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Kryo serializer of {@link TokenFrequencyMap}.
+ *
+ * The map is written as its size followed by every token as a varint length and its UTF-8 bytes, and then by every count as a varint in
+ * the same order. Most counts fit in one byte, where the default map serializer writes a class id and four bytes for every key and value.
+ */
+public class TokenFrequencyMapSerializer extends Serializer<TokenFrequencyMap> {
+
+    @Override
+    public void write(Kryo kryo, Output output, TokenFrequencyMap tokensFrequency) {
+	int size = tokensFrequency.size();
+	int[] counts = new int[size];
+	int i = 0;
+	output.writeVarInt(size, true);
+	for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+	    byte[] token = entry.getKey().getBytes(StandardCharsets.UTF_8);
+	    output.writeVarInt(token.length, true);
+	    output.writeBytes(token);
+	    counts[i++] = entry.getValue();
+	}
+	for (i = 0; i < size; i++) {
+	    output.writeVarInt(counts[i], true);
+	}
+    }
+
+    @Override
+    public TokenFrequencyMap read(Kryo kryo, Input input, Class<TokenFrequencyMap> type) {
+	int size = input.readVarInt(true);
+	String[] tokens = new String[size];
+	for (int i = 0; i < size; i++) {
+	    tokens[i] = new String(input.readBytes(input.readVarInt(true)), StandardCharsets.UTF_8);
+	}
+	TokenFrequencyMap tokensFrequency = new TokenFrequencyMap((int) (size / 0.75f) + 1);
+	for (int i = 0; i < size; i++) {
+	    tokensFrequency.put(tokens[i], input.readVarInt(true));
+	}
+	return tokensFrequency;
+    }
+
+}
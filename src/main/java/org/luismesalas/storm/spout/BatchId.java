@@ -0,0 +1,25 @@
+package org.luismesalas.storm.spout;
+
+import java.util.List;
+
+/**
+ * Message id of a batch of small files emitted as a single tuple by {@link FolderWatcher}.
+ */
+public class BatchId {
+
+    private final List<String> filepaths;
+
+    public BatchId(List<String> filepaths) {
+	this.filepaths = filepaths;
+    }
+
+    public List<String> getFilepaths() {
+	return filepaths;
+    }
+
+    @Override
+    public String toString() {
+	return "batch of " + filepaths.size() + " files starting at " + filepaths.get(0);
+    }
+
+}
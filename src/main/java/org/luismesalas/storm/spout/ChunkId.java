@@ -0,0 +1,51 @@
+package org.luismesalas.storm.spout;
+
+/**
+ * Message id of one chunk of a file split by {@link FolderWatcher}.
+ *
+ * Every time a file is split its chunks get a new attempt, later attempts have higher numbers.
+ */
+public class ChunkId {
+
+    private final String filepath;
+    private final int index;
+    private final long attempt;
+
+    public ChunkId(String filepath, int index, long attempt) {
+	this.filepath = filepath;
+	this.index = index;
+	this.attempt = attempt;
+    }
+
+    public String getFilepath() {
+	return filepath;
+    }
+
+    public int getIndex() {
+	return index;
+    }
+
+    public long getAttempt() {
+	return attempt;
+    }
+
+    @Override
+    public int hashCode() {
+	return (filepath.hashCode() * 31 + index) * 31 + Long.hashCode(attempt);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+	if (!(obj instanceof ChunkId)) {
+	    return false;
+	}
+	ChunkId other = (ChunkId) obj;
+	return index == other.index && attempt == other.attempt && filepath.equals(other.filepath);
+    }
+
+    @Override
+    public String toString() {
+	return filepath + " [chunk " + index + ", attempt " + attempt + "]";
+    }
+
+}
@@ -0,0 +1,39 @@
+package org.luismesalas.storm.spout;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the chunks of every split file still in flight.
+ *
+ * Only the last attempt of a file is tracked, acks and fails of the chunks of earlier attempts are ignored.
+ */
+public class ChunkTracker {
+
+    private final Map<String, long[]> _files = new HashMap<String, long[]>();
+
+    public void start(String filepath, int chunks, long attempt) {
+	// Pending chunks, failed chunks and attempt
+	_files.put(filepath, new long[] { chunks, 0, attempt });
+    }
+
+    /**
+     * @return null while some chunks of the file are still pending, otherwise whether every chunk succeeded
+     */
+    public Boolean complete(ChunkId id, boolean success) {
+	long[] state = _files.get(id.getFilepath());
+	if (state == null || state[2] != id.getAttempt()) {
+	    return null;
+	}
+	state[0]--;
+	if (!success) {
+	    state[1]++;
+	}
+	if (state[0] > 0) {
+	    return null;
+	}
+	_files.remove(id.getFilepath());
+	return state[1] == 0;
+    }
+
+}
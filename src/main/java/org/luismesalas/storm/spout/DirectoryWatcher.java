@@ -0,0 +1,132 @@
+package org.luismesalas.storm.spout;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Watches a folder tree for new files.
+ *
+ * Every subdirectory is registered, including the ones created while watching, and only the paths of the newly created files are
+ * reported.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    private final WatchService _watcher;
+    private final Map<WatchKey, Path> _keys = new HashMap<WatchKey, Path>();
+
+    public DirectoryWatcher(Path root) throws IOException {
+	_watcher = FileSystems.getDefault().newWatchService();
+	registerAll(root, null);
+    }
+
+    /**
+     * Collects the files created since the last call into {@code created}.
+     *
+     * @return true if events were lost and the caller has to rescan the whole tree
+     */
+    public boolean poll(List<Path> created) {
+	return pollKeys(_watcher.poll(), created);
+    }
+
+    /**
+     * Same as {@link #poll(List)}, but waits up to {@code timeoutMillis} for the first event.
+     */
+    public boolean poll(List<Path> created, long timeoutMillis) throws InterruptedException {
+	if (timeoutMillis <= 0) {
+	    return poll(created);
+	}
+	return pollKeys(_watcher.poll(timeoutMillis, TimeUnit.MILLISECONDS), created);
+    }
+
+    private boolean pollKeys(WatchKey key, List<Path> created) {
+	boolean overflow = false;
+	for (; key != null; key = _watcher.poll()) {
+	    Path dir = _keys.get(key);
+
+	    for (WatchEvent<?> event : key.pollEvents()) {
+
+		// Registered only for ENTRY_CREATE events. Eventually an OVERFLOW event can occur regardless if events are lost or
+		// discarded
+		if (event.kind() == OVERFLOW) {
+		    overflow = true;
+		    continue;
+		}
+
+		// The context of the event is the path relative to the watched folder
+		@SuppressWarnings("unchecked")
+		WatchEvent<Path> ev = (WatchEvent<Path>) event;
+		if (dir == null || ev.context() == null) {
+		    continue;
+		}
+		Path child = dir.resolve(ev.context());
+
+		try {
+		    if (Files.isDirectory(child)) {
+			// Files may have been created in the new folder before it was registered
+			registerAll(child, created);
+		    } else {
+			created.add(child);
+		    }
+		} catch (IOException e) {
+		    logger.warning("Can't watch folder " + child + ": " + e.getMessage());
+		}
+	    }
+
+	    // Reset the key. This is crucial if you want to receive further watch events. If the key is no longer valid, the directory is
+	    // inaccessible, usually because it was removed once its files were processed.
+	    if (!key.reset()) {
+		_keys.remove(key);
+	    }
+	}
+	return overflow;
+    }
+
+    @Override
+    public void close() throws IOException {
+	_watcher.close();
+    }
+
+    private void registerAll(Path start, final List<Path> files) throws IOException {
+	Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+		_keys.put(dir.register(_watcher, ENTRY_CREATE), dir);
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+		if (files != null && attrs.isRegularFile()) {
+		    files.add(file);
+		}
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFileFailed(Path file, IOException e) {
+		logger.warning("Can't access " + file + ": " + e.getMessage());
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+    }
+
+}
@@ -0,0 +1,347 @@
+package org.luismesalas.storm.spout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.luismesalas.storm.util.DedupCache;
+import org.luismesalas.storm.util.DocumentReader;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.StatsLookup;
+
+/**
+ * Background thread that watches the input folder and reads the next files ahead of the spout.
+ *
+ * Read files are handed to the spout through a bounded lock-free queue, so nextTuple never blocks on the file system. When a
+ * {@link DedupCache} is given, the content of every read file is hashed and looked up here too.
+ *
+ * The input folder is scanned in parallel at start and after a watcher overflow, and the files found are read while the scan goes on, in
+ * no particular order.
+ */
+public class FileFeeder implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(FileFeeder.class.getName());
+
+    private static final long WATCH_POLL_MILLIS = 200;
+    private static final long SCAN_POLL_MILLIS = 10;
+    private static final long FULL_QUEUE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String _inputPath;
+    private final StatsLookup _statsLookup;
+    private final int _capacity;
+    private final DirectoryWatcher _watcher;
+    private final DocumentReader _reader;
+    private final DedupCache _dedup;
+    private final ForkJoinPool _scanPool;
+
+    private final Queue<File> _pending = new ArrayDeque<File>();
+    private final Map<String, Long> _arrivals = new HashMap<String, Long>();
+    private final Set<String> _inflight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Queue<String> _resubmitted = new ConcurrentLinkedQueue<String>();
+    private final Queue<Path> _scanned = new ConcurrentLinkedQueue<Path>();
+    private final Set<String> _singles = new HashSet<String>();
+    private final Queue<Document> _ready = new ConcurrentLinkedQueue<Document>();
+    private final AtomicInteger _readyCount = new AtomicInteger();
+
+    private volatile int _pendingCount;
+    private volatile boolean _running = true;
+    private Thread _thread;
+    private ForkJoinTask<Void> _scan;
+    private boolean _rescan;
+    private int _scanCount;
+
+    /**
+     * @param statsLookup
+     *            finds the files processed already, which are handed to the spout without reading them
+     * @param dedup
+     *            cache of already processed contents, or null to process every file
+     * @param scanThreads
+     *            threads listing the input folder
+     */
+    public FileFeeder(String inputPath, StatsLookup statsLookup, int capacity, DocumentReader reader, DedupCache dedup, int scanThreads)
+	    throws IOException {
+	_inputPath = inputPath;
+	_statsLookup = statsLookup;
+	_capacity = Math.max(1, capacity);
+	_reader = reader;
+	_dedup = dedup;
+	_scanPool = new ForkJoinPool(Math.max(1, scanThreads));
+	_watcher = new DirectoryWatcher(Paths.get(inputPath));
+    }
+
+    public void start() {
+	_thread = new Thread(this, "folder-watcher-feeder");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    public void stop() {
+	_running = false;
+	if (_thread != null) {
+	    _thread.interrupt();
+	}
+	_scanPool.shutdownNow();
+	try {
+	    _watcher.close();
+	} catch (IOException e) {
+	    logger.warning(e.getMessage());
+	}
+    }
+
+    /**
+     * Returns the next read file, or null if none is ready yet. Called from the spout thread.
+     */
+    public Document poll() {
+	Document document = _ready.poll();
+	if (document != null) {
+	    _readyCount.decrementAndGet();
+	}
+	return document;
+    }
+
+    /**
+     * Number of files read and waiting for the spout.
+     */
+    public int getReadyCount() {
+	return _readyCount.get();
+    }
+
+    /**
+     * Number of files found and waiting to be read.
+     */
+    public int getPendingCount() {
+	return _pendingCount;
+    }
+
+    /**
+     * Forgets a file once it has left the input folder, so it can be enqueued again if a new file shows up with the same name.
+     */
+    public void release(String filepath) {
+	_inflight.remove(filepath);
+    }
+
+    /**
+     * Reads an in-flight file again so it is emitted on its own instead of in a batch. Called from the spout thread.
+     */
+    public void resubmit(String filepath) {
+	_resubmitted.add(filepath);
+    }
+
+    @Override
+    public void run() {
+	startScan();
+
+	while (_running) {
+	    try {
+		List<Path> created = new ArrayList<Path>();
+		if (_watcher.poll(created, pollMillis())) {
+		    logger.warning("Input folder overflow");
+		    startScan();
+		}
+		enqueueScanned();
+
+		String resubmitted;
+		while ((resubmitted = _resubmitted.poll()) != null) {
+		    _singles.add(resubmitted);
+		    _pending.add(new File(resubmitted));
+		}
+
+		int count = 0;
+		for (Path path : created) {
+		    if (enqueue(path.toFile())) {
+			count++;
+		    }
+		}
+		if (count != 0 && logger.isLoggable(Level.FINE)) {
+		    logger.fine("#Enqueued elements: " + count);
+		}
+
+		// Prefetch the next files while there is room in the handoff queue
+		while (_running && !_pending.isEmpty() && _readyCount.get() < _capacity) {
+		    File file = _pending.poll();
+		    _ready.add(read(file));
+		    _readyCount.incrementAndGet();
+		}
+
+		_pendingCount = _pending.size();
+		if (!_pending.isEmpty() && _readyCount.get() >= _capacity) {
+		    LockSupport.parkNanos(FULL_QUEUE_PARK_NANOS);
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    } catch (Exception e) {
+		logger.severe("Exception in FolderWatcher feeder: " + e.getMessage());
+	    }
+	}
+    }
+
+    // The file has already left the pending queue, so any error ends in a document without content that the spout fails and moves
+    private Document read(File file) {
+	boolean batchable = !_singles.remove(file.getAbsolutePath());
+	Long arrival = _arrivals.remove(file.getAbsolutePath());
+	long arrivalMillis = arrival == null ? System.currentTimeMillis() : arrival;
+
+	String content = null;
+	long size = 0;
+	DedupCache.Entry cached = null;
+	try {
+	    if (_statsLookup.hasStats(file.getAbsolutePath())) {
+		return new Document(file, null, 0, batchable, true, arrivalMillis, null);
+	    }
+	    size = file.length();
+	    content = _reader.read(file);
+	    if (_dedup != null && !content.isEmpty()) {
+		cached = _dedup.get(DedupCache.hash(content), content.length());
+	    }
+	} catch (IOException e) {
+	    logger.warning("Can't read file " + file.getAbsolutePath() + ": " + e.getMessage());
+	} catch (RuntimeException e) {
+	    logger.warning("Error reading file " + file.getAbsolutePath() + ": " + e);
+	    content = null;
+	    cached = null;
+	}
+	return new Document(file, content, size, batchable, false, arrivalMillis, cached);
+    }
+
+    private long pollMillis() {
+	if (!_pending.isEmpty() || !_resubmitted.isEmpty() || !_scanned.isEmpty()) {
+	    return 0;
+	}
+	return _scan != null ? SCAN_POLL_MILLIS : WATCH_POLL_MILLIS;
+    }
+
+    // An overflow during a scan may have missed files the running scan had already passed, so the folder is scanned again after it
+    private void startScan() {
+	if (_scan != null) {
+	    _rescan = true;
+	    return;
+	}
+	_scanCount = 0;
+	_scan = GeneralUtils.scanFiles(_scanPool, Paths.get(_inputPath), new Consumer<Path>() {
+	    @Override
+	    public void accept(Path path) {
+		_scanned.add(path);
+	    }
+	});
+    }
+
+    private void enqueueScanned() {
+	if (_scan == null) {
+	    return;
+	}
+	boolean done = _scan.isDone();
+	Path path;
+	while ((path = _scanned.poll()) != null) {
+	    if (enqueue(path.toFile())) {
+		_scanCount++;
+	    }
+	}
+	if (!done) {
+	    return;
+	}
+
+	if (_scanCount > 0) {
+	    logger.info("#Files enqueued: " + _scanCount);
+	}
+	_scan = null;
+	if (_rescan) {
+	    _rescan = false;
+	    startScan();
+	}
+    }
+
+    // Files already queued or emitted are skipped, so rescans and duplicated events don't emit a file twice
+    private boolean enqueue(File file) {
+	if (_inflight.add(file.getAbsolutePath())) {
+	    _arrivals.put(file.getAbsolutePath(), System.currentTimeMillis());
+	    _pending.add(file);
+	    return true;
+	}
+	return false;
+    }
+
+    public static class Document {
+	private final File file;
+	private final String content;
+	private final long size;
+	private final boolean batchable;
+	private final boolean processed;
+	private final long arrivalMillis;
+	private final DedupCache.Entry cached;
+
+	Document(File file, String content, long size, boolean batchable, boolean processed, long arrivalMillis, DedupCache.Entry cached) {
+	    this.file = file;
+	    this.content = content;
+	    this.size = size;
+	    this.batchable = batchable;
+	    this.processed = processed;
+	    this.arrivalMillis = arrivalMillis;
+	    this.cached = cached;
+	}
+
+	public File getFile() {
+	    return file;
+	}
+
+	/**
+	 * Null if the file could not be read or was already processed.
+	 */
+	public String getContent() {
+	    return content;
+	}
+
+	/**
+	 * Size of the file in bytes.
+	 */
+	public long getSize() {
+	    return size;
+	}
+
+	/**
+	 * Time the file was found in the input folder.
+	 */
+	public long getArrivalMillis() {
+	    return arrivalMillis;
+	}
+
+	public boolean isBatchable() {
+	    return batchable;
+	}
+
+	/**
+	 * Results of a previous document with the same content, or null if there are none.
+	 */
+	public DedupCache.Entry getCached() {
+	    return cached;
+	}
+
+	/**
+	 * True if the output folder already has stats for this file, see {@link StatsLookup}.
+	 */
+	public boolean isProcessed() {
+	    return processed;
+	}
+    }
+
+}
@@ -0,0 +1,266 @@
+package org.luismesalas.storm.spout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.luismesalas.storm.util.GeneralUtils;
+
+/**
+ * Background thread that moves acked and failed files out of the input folder.
+ *
+ * Moves are queued by the spout and taken in batches of up to {@code batchSize}. Files are renamed atomically, and only copied when the
+ * destination is on another file system. Once a batch is moved, the folders it emptied are removed from the deepest up, each one once. A
+ * full queue makes the spout wait for the mover. Finished moves, successful or not, are handed back through {@link #pollDone()}.
+ */
+public class FileMover {
+
+    private static final Logger logger = Logger.getLogger(FileMover.class.getName());
+
+    private static final long POLL_MILLIS = 50;
+
+    private static final Comparator<Path> DEEPEST_FIRST = new Comparator<Path>() {
+	@Override
+	public int compare(Path o1, Path o2) {
+	    return Integer.compare(o2.getNameCount(), o1.getNameCount());
+	}
+    };
+
+    private final String _inputPath;
+    private final String _outputPath;
+    private final Path _inputFolder;
+    private final int _batchSize;
+    private final BlockingQueue<Move> _queue;
+    private final Queue<Move> _done = new ConcurrentLinkedQueue<Move>();
+
+    private final AtomicLong _moved = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _copied = new AtomicLong();
+    private final AtomicLong _waits = new AtomicLong();
+    private volatile boolean _running = true;
+    private Thread _thread;
+
+    public FileMover(String inputPath, String outputPath, int queueSize, int batchSize) {
+	_inputPath = inputPath;
+	_outputPath = outputPath;
+	_inputFolder = Paths.get(inputPath).toAbsolutePath();
+	_batchSize = Math.max(1, batchSize);
+	_queue = new ArrayBlockingQueue<Move>(Math.max(1, queueSize));
+    }
+
+    public void start() {
+	_thread = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		moveLoop();
+	    }
+	}, "folder-watcher-mover");
+	_thread.setDaemon(true);
+	_thread.start();
+    }
+
+    /**
+     * Moves the files still queued and waits for the thread to finish.
+     */
+    public void stop() {
+	_running = false;
+	if (_thread != null) {
+	    try {
+		_thread.join(TimeUnit.SECONDS.toMillis(10));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+
+    /**
+     * Queues a file to be moved to a subfolder of the output folder, waiting for room if the queue is full.
+     */
+    public void move(String filepath, String destFolder) throws InterruptedException {
+	Move move = new Move(filepath, destFolder);
+	if (!_queue.offer(move)) {
+	    _waits.incrementAndGet();
+	    _queue.put(move);
+	}
+    }
+
+    /**
+     * Moves a file on the calling thread, for the moves that have to be done before going on.
+     *
+     * @return false if the file couldn't be moved
+     */
+    public boolean moveNow(String filepath, String destFolder) {
+	Path source = Paths.get(filepath);
+	boolean moved = move(source, destFolder);
+	if (moved) {
+	    deleteEmptyFolders(Collections.singleton(source.toAbsolutePath().getParent()));
+	}
+	return moved;
+    }
+
+    /**
+     * @return the next move done with, successful or not, or null if there is none
+     */
+    public Move pollDone() {
+	return _done.poll();
+    }
+
+    /**
+     * @return queued moves, moved files, files that couldn't be moved, files copied instead of renamed and times the queue was full
+     */
+    public Map<String, Long> getCounters() {
+	Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	counters.put("queued", (long) _queue.size());
+	counters.put("moved", _moved.get());
+	counters.put("failed", _failed.get());
+	counters.put("copied", _copied.get());
+	counters.put("waits", _waits.get());
+	return counters;
+    }
+
+    private void moveLoop() {
+	List<Move> batch = new ArrayList<Move>(_batchSize);
+	while (_running || !_queue.isEmpty()) {
+	    Move first;
+	    try {
+		first = _queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		break;
+	    }
+	    if (first == null) {
+		continue;
+	    }
+
+	    batch.add(first);
+	    _queue.drainTo(batch, _batchSize - 1);
+	    Set<Path> folders = new HashSet<Path>();
+	    for (Move move : batch) {
+		Path source = Paths.get(move.filepath);
+		if (move(source, move.destFolder)) {
+		    move.moved = true;
+		    folders.add(source.toAbsolutePath().getParent());
+		}
+		_done.add(move);
+	    }
+	    deleteEmptyFolders(folders);
+	    batch.clear();
+	}
+    }
+
+    private boolean move(Path source, String destFolder) {
+	Path dest = Paths.get(GeneralUtils.calculateDeltaPath(_inputPath, _outputPath + File.separator + destFolder, source.toAbsolutePath()
+		.toString()));
+	try {
+	    try {
+		rename(source, dest);
+	    } catch (NoSuchFileException e) {
+		// Destination folders are only created when missing, a missing source fails again here
+		Files.createDirectories(dest.getParent());
+		rename(source, dest);
+	    }
+	    _moved.incrementAndGet();
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Original file moved to: " + dest);
+	    }
+	    return true;
+	} catch (IOException e) {
+	    _failed.incrementAndGet();
+	    logger.warning("Can't move file " + source + ": " + e);
+	    return false;
+	}
+    }
+
+    private void rename(Path source, Path dest) throws IOException {
+	try {
+	    Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+	} catch (AtomicMoveNotSupportedException e) {
+	    Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+	    _copied.incrementAndGet();
+	}
+    }
+
+    // Deeper folders go first, so a folder is only tried once every emptied folder under it has been removed
+    private void deleteEmptyFolders(Set<Path> folders) {
+	PriorityQueue<Path> candidates = new PriorityQueue<Path>(Math.max(1, folders.size()), DEEPEST_FIRST);
+	Set<Path> queued = new HashSet<Path>();
+	for (Path folder : folders) {
+	    if (queued.add(folder)) {
+		candidates.add(folder);
+	    }
+	}
+
+	Path folder;
+	while ((folder = candidates.poll()) != null) {
+	    if (folder.equals(_inputFolder) || !folder.startsWith(_inputFolder)) {
+		continue;
+	    }
+	    try {
+		Files.delete(folder);
+	    } catch (NoSuchFileException e) {
+		// Already removed, its parent may be empty too
+	    } catch (DirectoryNotEmptyException e) {
+		continue;
+	    } catch (IOException e) {
+		logger.warning("Can't delete folder " + folder + ": " + e.getMessage());
+		continue;
+	    }
+	    Path parent = folder.getParent();
+	    if (parent != null && queued.add(parent)) {
+		candidates.add(parent);
+	    }
+	}
+    }
+
+    public static class Move {
+	private final String filepath;
+	private final String destFolder;
+	private volatile boolean moved;
+
+	Move(String filepath, String destFolder) {
+	    this.filepath = filepath;
+	    this.destFolder = destFolder;
+	}
+
+	public String getFilepath() {
+	    return filepath;
+	}
+
+	/**
+	 * Subfolder of the output folder the file was moved to.
+	 */
+	public String getDestFolder() {
+	    return destFolder;
+	}
+
+	/**
+	 * False if the file couldn't be moved and is still in the input folder.
+	 */
+	public boolean isMoved() {
+	    return moved;
+	}
+    }
+
+}
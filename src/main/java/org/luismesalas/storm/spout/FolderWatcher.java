@@ -1,51 +1,70 @@
 package org.luismesalas.storm.spout;
 
-import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
-import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
-
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.storm.metric.api.IMetric;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.topology.base.BaseRichSpout;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Values;
-import org.apache.storm.utils.Utils;
+import org.luismesalas.storm.metric.LatencyHistogram;
+import org.luismesalas.storm.metric.RateMetric;
+import org.luismesalas.storm.util.DedupCache;
+import org.luismesalas.storm.util.DocumentReader;
 import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.StatsLookup;
 
 public class FolderWatcher extends BaseRichSpout {
 
     private static final long serialVersionUID = 4959474912622154093L;
     private static final Logger logger = Logger.getLogger(FolderWatcher.class.getName());
     SpoutOutputCollector _collector;
-    WatchService _watcher;
+    FileFeeder _feeder;
+    FileMover _mover;
     String _inputPath;
     String _outputPath;
-
-    Queue<File> _fqueue = new LinkedList<File>();
+    int _emitBatchSize;
+    int _chunkSize;
+    int _batchMaxFiles;
+    int _batchMaxChars;
+    ChunkTracker _chunks;
+    long _lastChunkAttempt;
+    SpoutJournal _journal;
+    StatsLookup _statsLookup;
+    RetryScheduler _retries;
+    DedupCache _dedup;
+    Map<String, Long> _arrivals;
+    RateMetric _filesRate;
+    RateMetric _bytesRate;
+    LatencyHistogram _fileLatency;
 
     @Override
     public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context, SpoutOutputCollector collector) {
 	_collector = collector;
+	_chunks = new ChunkTracker();
+	_retries = RetryScheduler.fromConf(conf);
+	_arrivals = new HashMap<String, Long>();
+	if (GeneralUtils.getConfBoolean(conf, "dedup_enabled", false)) {
+	    _dedup = DedupCache.getInstance(conf);
+	}
+	registerMetrics(conf, context);
 	try {
-	    _watcher = FileSystems.getDefault().newWatchService();
 	    _inputPath = conf.get("input").toString();
 	    _outputPath = conf.get("output").toString();
+	    _emitBatchSize = Math.max(1, GeneralUtils.getConfInt(conf, "emit_batch_size", 8));
+	    _chunkSize = GeneralUtils.getConfInt(conf, "chunk_size", 0);
+	    _batchMaxFiles = GeneralUtils.getConfInt(conf, "batch_max_files", 0);
+	    _batchMaxChars = GeneralUtils.getConfInt(conf, "batch_max_chars", 1024 * 1024);
 
 	    File outputFolder = new File(_outputPath);
 	    if (!outputFolder.exists()) {
@@ -55,10 +74,24 @@ public class FolderWatcher extends BaseRichSpout {
 	    logger.info("Reading files from: " + _inputPath);
 	    logger.info("Process output files are going to" + _outputPath);
 
-	    Path dir = Paths.get(_inputPath);
-	    dir.register(_watcher, ENTRY_CREATE);
+	    _mover = new FileMover(_inputPath, _outputPath, GeneralUtils.getConfInt(conf, "move_queue_size", 1024), GeneralUtils.getConfInt(
+		    conf, "move_batch_size", 64));
+	    _mover.start();
+	    _statsLookup = StatsLookup.fromConf(conf);
+
+	    if (GeneralUtils.getConfBoolean(conf, "journal_enabled", true)) {
+		String journalFile = GeneralUtils.getConfString(conf, "journal_file", _outputPath + File.separator
+			+ ".folder-watcher.journal");
+		_journal = new SpoutJournal(new File(journalFile), GeneralUtils.getConfInt(conf, "journal_sync_records", 64),
+			GeneralUtils.getConfLong(conf, "journal_sync_millis", 1000));
+		recover(_journal.open());
+	    }
 
-	    enqueueFileList();
+	    // Enough files have to be read ahead to fill a batch
+	    int prefetch = Math.max(GeneralUtils.getConfInt(conf, "prefetch_files", 8), _batchMaxFiles);
+	    _feeder = new FileFeeder(_inputPath, _statsLookup, prefetch, DocumentReader.fromConf(conf), _dedup,
+		    GeneralUtils.getConfInt(conf, "scan_threads", 4));
+	    _feeder.start();
 
 	} catch (IOException e) {
 	    logger.severe(e.getMessage());
@@ -66,168 +99,322 @@ public class FolderWatcher extends BaseRichSpout {
 
     }
 
+    private void registerMetrics(@SuppressWarnings("rawtypes") Map conf, TopologyContext context) {
+	int bucketSecs = GeneralUtils.getConfInt(conf, "metrics_bucket_secs", 60);
+	_filesRate = context.registerMetric("files_per_sec", new RateMetric(), bucketSecs);
+	_bytesRate = context.registerMetric("bytes_per_sec", new RateMetric(), bucketSecs);
+	// From the moment the file is found in the input folder until its stats are written
+	_fileLatency = context.registerMetric("file_latency_ms", new LatencyHistogram(), bucketSecs);
+	context.registerMetric("queue_depth", new IMetric() {
+	    @Override
+	    public Object getValueAndReset() {
+		Map<String, Integer> depth = new HashMap<String, Integer>();
+		depth.put("pending", _feeder == null ? 0 : _feeder.getPendingCount());
+		depth.put("ready", _feeder == null ? 0 : _feeder.getReadyCount());
+		depth.put("inflight", _arrivals.size());
+		return depth;
+	    }
+	}, bucketSecs);
+	context.registerMetric("retries", new IMetric() {
+	    @Override
+	    public Object getValueAndReset() {
+		Map<String, Long> counters = new HashMap<String, Long>();
+		counters.put("pending", (long) _retries.getPending());
+		counters.put("scheduled", _retries.getScheduled());
+		counters.put("exhausted", _retries.getExhausted());
+		counters.put("recovered", _retries.getRecovered());
+		return counters;
+	    }
+	}, bucketSecs);
+	context.registerMetric("moves", new IMetric() {
+	    @Override
+	    public Object getValueAndReset() {
+		return _mover == null ? null : _mover.getCounters();
+	    }
+	}, bucketSecs);
+	if (_dedup != null) {
+	    context.registerMetric("dedup", new IMetric() {
+		@Override
+		public Object getValueAndReset() {
+		    return _dedup.getCounters();
+		}
+	    }, bucketSecs);
+	}
+    }
+
+    @Override
+    public void close() {
+	if (_feeder != null) {
+	    _feeder.stop();
+	}
+	if (_mover != null) {
+	    _mover.stop();
+	    movesDone();
+	}
+	if (_journal != null) {
+	    try {
+		_journal.close();
+	    } catch (IOException e) {
+		logger.warning(e.getMessage());
+	    }
+	}
+    }
+
     @Override
     public void nextTuple() {
 
-	WatchKey key;
-	try {
-	    key = _watcher.poll();
+	if (_feeder == null) {
+	    return;
+	}
 
-	    if (key != null) {
+	movesDone();
 
-		int count = 0;
+	// Due retries are read again by the feeder and come back as single documents
+	String retry;
+	while ((retry = _retries.poll()) != null) {
+	    _feeder.resubmit(retry);
+	}
 
-		for (WatchEvent<?> event : key.pollEvents()) {
+	// Watching and reading happen in the feeder thread. When nothing is emitted here Storm applies its spout wait strategy.
+	List<String> batchContents = null;
+	List<String> batchFilepaths = null;
+	int batchChars = 0;
 
-		    WatchEvent.Kind<?> kind = event.kind();
+	int emitted = 0;
+	while (emitted < _emitBatchSize) {
+	    FileFeeder.Document document = _feeder.poll();
+	    if (document == null) {
+		break;
+	    }
 
-		    // Registered only for ENTRY_CREATE events. Eventually an OVERFLOW event can occur regardless if events are lost or
-		    // discarded
-		    if (kind == OVERFLOW) {
-			logger.warning("Input folder overflow");
-			_fqueue.clear();
-			enqueueFileList();
-			continue;
+	    try {
+		File currentFile = document.getFile();
+		String fileContent = document.getContent();
+
+		if (document.isProcessed()) {
+		    // An earlier attempt got to write the stats, only its ack or its move was lost
+		    fileProcessed(currentFile.getAbsolutePath());
+		} else if (fileContent == null || fileContent.isEmpty()) {
+		    logger.warning("Fail processing" + currentFile);
+		    fileFailed(currentFile.getAbsolutePath());
+		} else if (document.getCached() != null) {
+		    // Same content as a document already processed, its results go straight to the stats
+		    fileEmitted(document);
+		    _collector.emit(GeneralUtils.CACHED_STREAM, new Values(currentFile.getAbsolutePath(),
+			    document.getCached().getLanguages(), document.getCached().getTokensFrequency()), currentFile.getAbsolutePath());
+		    emitted++;
+		} else if (_chunkSize > 0 && fileContent.length() > _chunkSize) {
+		    fileEmitted(document);
+		    emitChunks(fileContent, currentFile.getAbsolutePath());
+		    emitted++;
+		} else if (_batchMaxFiles > 1 && document.isBatchable() && fileContent.length() < _batchMaxChars) {
+		    if (batchFilepaths == null) {
+			batchContents = new ArrayList<String>(_batchMaxFiles);
+			batchFilepaths = new ArrayList<String>(_batchMaxFiles);
 		    }
-
-		    // The file absoulte path is the context of the event.
-		    @SuppressWarnings("unchecked")
-		    WatchEvent<Path> ev = (WatchEvent<Path>) event;
-		    Path filename = ev.context();
-
-		    logger.info("File: " + filename);
-
-		    if (filename != null && !filename.equals("")) {
-			enqueueFileList();
+		    fileEmitted(document);
+		    batchContents.add(fileContent);
+		    batchFilepaths.add(currentFile.getAbsolutePath());
+		    batchChars += fileContent.length();
+		    if (batchFilepaths.size() >= _batchMaxFiles || batchChars >= _batchMaxChars) {
+			emitBatch(batchContents, batchFilepaths);
+			batchContents = null;
+			batchFilepaths = null;
+			batchChars = 0;
+			emitted++;
 		    }
-
-		}
-
-		if (count != 0) {
-		    logger.info("#Enqueued elements: " + count);
+		} else {
+		    fileEmitted(document);
+		    _collector.emit(new Values(fileContent, currentFile.getAbsolutePath(), 0, 1, 0L), currentFile.getAbsolutePath());
+		    emitted++;
 		}
-
-		// Reset the key. This is crucial if you want to receive further watch events. If the key is no longer valid, the directory
-		// is inaccessible so exits the loop.
-		key.reset();
-
+	    } catch (Exception e) {
+		e.printStackTrace();
+		break;
 	    }
+	}
 
-	    File currentFile = _fqueue.poll();
-	    if (currentFile != null) {
-
-		logger.info("Reading file: " + currentFile.getAbsolutePath());
-		String fileContent = GeneralUtils.readFile(currentFile.getAbsolutePath());
+	// Don't hold a partial batch back waiting for more files
+	if (batchFilepaths != null) {
+	    emitBatch(batchContents, batchFilepaths);
+	}
 
-		File outputCandidate = new File(GeneralUtils.calculateDeltaPath(_inputPath, _outputPath, currentFile.getAbsolutePath()));
+	if (_journal != null) {
+	    _journal.maybeSync();
+	}
 
-		if (fileContent == "" || outputCandidate.exists()) {
-		    {
-			logger.warning("Fail processing" + currentFile);
+    }
 
-			File dest = new File(GeneralUtils.calculateDeltaPath(_inputPath, _outputPath + File.separator + "failed",
-				currentFile.getAbsolutePath()));
+    @Override
+    public void ack(Object id) {
 
-			if (!dest.getParentFile().exists()) {
-			    dest.getParentFile().mkdirs();
-			}
+	if (id instanceof BatchId) {
+	    for (String filepath : ((BatchId) id).getFilepaths()) {
+		ack(filepath);
+	    }
+	    return;
+	}
 
-			if (currentFile.renameTo(dest)) {
-			    logger.info("Original file moved to: " + dest.getAbsolutePath());
-			    GeneralUtils.deleteEmptyParents(currentFile.getParentFile(), _inputPath);
-			} else {
-			    logger.warning("Can't move file: " + currentFile.getAbsolutePath());
-			}
-		    }
-		} else {
-		    _collector.emit(new Values(fileContent, currentFile.getAbsolutePath()), currentFile.getAbsolutePath());
-		}
-	    } else {
-		Utils.sleep(2000);
+	String filepath = id.toString();
+	if (id instanceof ChunkId) {
+	    filepath = ((ChunkId) id).getFilepath();
+	    Boolean success = _chunks.complete((ChunkId) id, true);
+	    if (success == null) {
+		return;
+	    }
+	    if (!success) {
+		retryOrFail(filepath);
+		return;
 	    }
+	}
 
-	} catch (Exception e) {
-	    e.printStackTrace();
-	    return;
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("File " + filepath + " processed with success");
 	}
+	fileProcessed(filepath);
 
     }
 
     @Override
-    public void ack(Object id) {
-
-	logger.info("File " + id.toString() + " processed with success");
-	try {
-	    File file = new File(id.toString());
+    public void fail(Object id) {
 
-	    File dest = new File(GeneralUtils.calculateDeltaPath(_inputPath, _outputPath + File.separator + "processed",
-		    file.getAbsolutePath()));
+	logger.warning("Failed tuple: " + id);
 
-	    if (!dest.getParentFile().exists()) {
-		dest.getParentFile().mkdirs();
+	if (id instanceof BatchId) {
+	    // The files of the batch are retried one by one, so a single bad file doesn't send the rest to failed
+	    for (String filepath : ((BatchId) id).getFilepaths()) {
+		retryOrFail(filepath);
 	    }
+	    return;
+	}
 
-	    if (file.renameTo(dest)) {
-		logger.info("Original file moved to: " + dest.getAbsolutePath());
-		GeneralUtils.deleteEmptyParents(file.getParentFile(), _inputPath);
-	    } else {
-		logger.warning("Can't move file: " + id);
+	if (id instanceof ChunkId) {
+	    // The file is retried once the rest of its chunks are done with
+	    Boolean success = _chunks.complete((ChunkId) id, false);
+	    if (success != null) {
+		retryOrFail(((ChunkId) id).getFilepath());
 	    }
-
-	} catch (Exception e) {
-
-	    logger.severe(e.getMessage());
 	    return;
 	}
 
+	retryOrFail(id.toString());
+
     }
 
     @Override
-    public void fail(Object id) {
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+	declarer.declare(new Fields("content", "filepath", "chunkindex", "chunkcount", "chunkattempt"));
+	declarer.declareStream(GeneralUtils.BATCH_STREAM, new Fields("contents", "filepaths"));
+	declarer.declareStream(GeneralUtils.CACHED_STREAM, new Fields("filepath", "langarray", "tokensfreq"));
+    }
 
-	logger.warning("Failed tuple: " + id);
+    // Timeouts under load also fail tuples, so files are only moved to failed once they run out of attempts
+    private void retryOrFail(String filepath) {
+	if (_retries.schedule(filepath)) {
+	    logger.info("File " + filepath + " scheduled for retry");
+	} else {
+	    logger.warning("File " + filepath + " failed after all its attempts");
+	    fileFailed(filepath);
+	}
+    }
 
-	try {
+    private void fileProcessed(String filepath) {
+	Long arrival = _arrivals.remove(filepath);
+	if (arrival != null) {
+	    _fileLatency.record(System.currentTimeMillis() - arrival);
+	}
+	_retries.succeeded(filepath);
+	moveFile(filepath, GeneralUtils.PROCESSED_FOLDER);
+    }
 
-	    File file = new File(id.toString());
-	    File dest = new File(GeneralUtils.calculateDeltaPath(_inputPath, _outputPath + File.separator + "failed",
-		    file.getAbsolutePath()));
+    private void fileFailed(String filepath) {
+	_arrivals.remove(filepath);
+	moveFile(filepath, GeneralUtils.FAILED_FOLDER);
+    }
 
-	    if (!dest.getParentFile().exists()) {
-		dest.getParentFile().mkdirs();
+    // The ack or fail is only journaled once the file has left the input folder, a file that couldn't be moved stays pending.
+    // Moved files can show up in the input folder again under the same name.
+    private void movesDone() {
+	FileMover.Move move;
+	while ((move = _mover.pollDone()) != null) {
+	    if (_journal != null && move.isMoved()) {
+		if (GeneralUtils.PROCESSED_FOLDER.equals(move.getDestFolder())) {
+		    _journal.acked(move.getFilepath());
+		} else {
+		    _journal.failed(move.getFilepath());
+		}
 	    }
-
-	    if (file.renameTo(dest)) {
-		logger.info("Original file moved to: " + dest.getAbsolutePath());
-		GeneralUtils.deleteEmptyParents(file.getParentFile(), _inputPath);
-	    } else {
-		logger.warning("Can't move file: " + id);
+	    if (_feeder != null) {
+		_feeder.release(move.getFilepath());
 	    }
-	} catch (Exception e) {
-	    logger.severe(e.getMessage());
-	    return;
 	}
+    }
 
+    private void fileEmitted(FileFeeder.Document document) {
+	String filepath = document.getFile().getAbsolutePath();
+	if (_journal != null) {
+	    _journal.emitted(filepath);
+	}
+	_filesRate.incr();
+	_bytesRate.incrBy(document.getSize());
+	// Retries keep the time the file first arrived
+	if (!_arrivals.containsKey(filepath)) {
+	    _arrivals.put(filepath, document.getArrivalMillis());
+	}
     }
 
-    @Override
-    public void declareOutputFields(OutputFieldsDeclarer declarer) {
-	declarer.declare(new Fields("content", "filepath"));
+    // Pending files whose stats were already written only missed the ack, the rest are left in the input folder to be emitted again.
+    // They are moved before the feeder starts, so its first scan doesn't find them.
+    private void recover(Set<String> pending) {
+	int recovered = 0;
+	for (String filepath : pending) {
+	    if (_statsLookup.hasStats(filepath)) {
+		if (_mover.moveNow(filepath, GeneralUtils.PROCESSED_FOLDER)) {
+		    _journal.acked(filepath);
+		    recovered++;
+		}
+	    }
+	}
+	logger.info("Recovered " + recovered + " processed files, " + (pending.size() - recovered)
+		+ " pending files will be emitted again");
     }
 
-    private void enqueueFileList() {
+    // The file is released once the mover is done with it, so a rescan doesn't enqueue it while it is still in the input folder
+    private void moveFile(String filepath, String destFolder) {
+	try {
+	    _mover.move(filepath, destFolder);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    logger.warning("Interrupted moving file: " + filepath);
+	}
+    }
 
-	File inputFolder = new File(_inputPath);
-	List<File> filesToProcess = new ArrayList<File>();
-	GeneralUtils.getFilesRecursively(inputFolder, filesToProcess);
-	Collections.sort(filesToProcess);
+    private void emitBatch(List<String> contents, List<String> filepaths) {
+	_collector.emit(GeneralUtils.BATCH_STREAM, new Values(contents, filepaths), new BatchId(filepaths));
+    }
 
-	if (filesToProcess != null && filesToProcess.size() > 0) {
-	    for (File file : filesToProcess) {
-		_fqueue.add(file);
+    // Chunks end on a token delimiter, so no token is split between two chunks
+    private void emitChunks(String content, String filepath) {
+	List<String> chunks = new ArrayList<String>();
+	int begin = 0;
+	while (begin < content.length()) {
+	    int end = Math.min(content.length(), begin + _chunkSize);
+	    while (end < content.length() && !GeneralUtils.isTokenDelimiter(content.charAt(end))) {
+		end++;
 	    }
-	    logger.info("#Files enqueued: " + filesToProcess.size());
+	    chunks.add(content.substring(begin, end));
+	    begin = end;
 	}
 
+	// The merger drops the chunks of an earlier attempt still waiting there, so attempts keep growing across restarts of the spout
+	long attempt = Math.max(System.currentTimeMillis(), _lastChunkAttempt + 1);
+	_lastChunkAttempt = attempt;
+	_chunks.start(filepath, chunks.size(), attempt);
+	for (int i = 0; i < chunks.size(); i++) {
+	    _collector.emit(new Values(chunks.get(i), filepath, i, chunks.size(), attempt), new ChunkId(filepath, i, attempt));
+	}
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("File " + filepath + " split in " + chunks.size() + " chunks");
+	}
     }
 }
@@ -0,0 +1,133 @@
+package org.luismesalas.storm.spout;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.luismesalas.storm.util.GeneralUtils;
+
+/**
+ * Schedules failed files to be emitted again with exponential backoff and jitter.
+ *
+ * The delay of the n-th retry is {@code baseDelay * 2^(n-1)}, capped at {@code maxDelay} and reduced by a random fraction of up to
+ * {@code jitter}, so files failed together by a timeout don't come back all at once. Due retries are polled without blocking.
+ */
+public class RetryScheduler {
+
+    private final int _maxAttempts;
+    private final long _baseDelayMillis;
+    private final long _maxDelayMillis;
+    private final double _jitter;
+    private final Random _random = new Random();
+
+    private final DelayQueue<Retry> _queue = new DelayQueue<Retry>();
+    private final Map<String, Integer> _failures = new HashMap<String, Integer>();
+
+    private long _scheduled;
+    private long _exhausted;
+    private long _recovered;
+
+    public RetryScheduler(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double jitter) {
+	_maxAttempts = maxAttempts;
+	_baseDelayMillis = baseDelayMillis;
+	_maxDelayMillis = maxDelayMillis;
+	_jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    public static RetryScheduler fromConf(@SuppressWarnings("rawtypes") Map conf) {
+	return new RetryScheduler(GeneralUtils.getConfInt(conf, "retry_max_attempts", 3), GeneralUtils.getConfLong(conf,
+		"retry_base_delay_millis", 1000), GeneralUtils.getConfLong(conf, "retry_max_delay_millis", 60000),
+		GeneralUtils.getConfDouble(conf, "retry_jitter", 0.5));
+    }
+
+    /**
+     * Records a failed attempt of the file and schedules the next one.
+     *
+     * @return false if the file has no attempts left
+     */
+    public boolean schedule(String filepath) {
+	Integer failures = _failures.get(filepath);
+	failures = failures == null ? 1 : failures + 1;
+	if (failures >= _maxAttempts) {
+	    _failures.remove(filepath);
+	    _exhausted++;
+	    return false;
+	}
+	_failures.put(filepath, failures);
+	_queue.add(new Retry(filepath, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis(failures))));
+	_scheduled++;
+	return true;
+    }
+
+    /**
+     * Forgets the failed attempts of a file once it is processed.
+     */
+    public void succeeded(String filepath) {
+	if (_failures.remove(filepath) != null) {
+	    _recovered++;
+	}
+    }
+
+    /**
+     * True if the file failed before and has attempts left.
+     */
+    public boolean isRetrying(String filepath) {
+	return _failures.containsKey(filepath);
+    }
+
+    /**
+     * @return the next file whose retry is due, or null if there is none
+     */
+    public String poll() {
+	Retry retry = _queue.poll();
+	return retry == null ? null : retry.filepath;
+    }
+
+    public int getPending() {
+	return _queue.size();
+    }
+
+    public long getScheduled() {
+	return _scheduled;
+    }
+
+    public long getExhausted() {
+	return _exhausted;
+    }
+
+    public long getRecovered() {
+	return _recovered;
+    }
+
+    long delayMillis(int failures) {
+	long delay = _maxDelayMillis;
+	if (failures - 1 < Long.numberOfLeadingZeros(_baseDelayMillis) - 1) {
+	    delay = Math.min(_maxDelayMillis, _baseDelayMillis << (failures - 1));
+	}
+	return (long) (delay * (1 - _jitter * _random.nextDouble()));
+    }
+
+    private static class Retry implements Delayed {
+	final String filepath;
+	final long dueNanos;
+
+	Retry(String filepath, long dueNanos) {
+	    this.filepath = filepath;
+	    this.dueNanos = dueNanos;
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+	    return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed o) {
+	    return Long.compare(dueNanos, ((Retry) o).dueNanos);
+	}
+    }
+
+}
@@ -0,0 +1,200 @@
+package org.luismesalas.storm.spout;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.luismesalas.storm.util.GeneralUtils;
+
+/**
+ * Append-only local journal of the files emitted, acked and failed by {@link FolderWatcher}.
+ *
+ * Acks and fails are recorded once the file has been moved out of the input folder, so a file is pending from its emitted record until
+ * its acked or failed one. Records are flushed and synced to disk in groups, every {@code syncRecords} records or {@code syncMillis}
+ * milliseconds. On open the journal is replayed and compacted so it only keeps the pending files. The pending files are also kept in
+ * memory, and the journal is compacted again whenever it has {@code COMPACT_FACTOR} times more records than pending files, so it grows
+ * with the files in flight rather than with every file ever emitted.
+ */
+public class SpoutJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SpoutJournal.class.getName());
+
+    public static final char EMITTED = 'E';
+    public static final char ACKED = 'A';
+    public static final char FAILED = 'F';
+
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private final File _file;
+    private final int _syncRecords;
+    private final long _syncMillis;
+    private final Set<String> _pending = new LinkedHashSet<String>();
+
+    private FileOutputStream _stream;
+    private Writer _writer;
+    private int _unsynced;
+    private long _records;
+    private long _lastSync = System.currentTimeMillis();
+
+    public SpoutJournal(File file, int syncRecords, long syncMillis) {
+	_file = file;
+	_syncRecords = syncRecords;
+	_syncMillis = syncMillis;
+    }
+
+    /**
+     * Replays the journal and rewrites it with the files still pending.
+     *
+     * @return files that were emitted but not acked or failed before the journal was closed, and are still in the input folder
+     */
+    public Set<String> open() throws IOException {
+	Set<String> pending = _pending;
+	if (_file.exists()) {
+	    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8));
+	    try {
+		String line;
+		while ((line = reader.readLine()) != null) {
+		    // A torn last record after a crash is just ignored
+		    if (line.length() < 3 || line.charAt(1) != ' ') {
+			continue;
+		    }
+		    if (line.charAt(0) == EMITTED) {
+			pending.add(line.substring(2));
+		    } else {
+			pending.remove(line.substring(2));
+		    }
+		}
+	    } finally {
+		reader.close();
+	    }
+	}
+
+	// Files that left the input folder were moved, only the record of the move was lost
+	Iterator<String> it = pending.iterator();
+	while (it.hasNext()) {
+	    if (!new File(it.next()).exists()) {
+		it.remove();
+	    }
+	}
+
+	File parent = _file.getAbsoluteFile().getParentFile();
+	if (!parent.exists()) {
+	    parent.mkdirs();
+	}
+	compact();
+	logger.info("Journal " + _file.getAbsolutePath() + " opened with " + pending.size() + " pending files");
+	return new LinkedHashSet<String>(pending);
+    }
+
+    public void emitted(String filepath) {
+	_pending.add(filepath);
+	append(EMITTED, filepath);
+    }
+
+    public void acked(String filepath) {
+	_pending.remove(filepath);
+	append(ACKED, filepath);
+    }
+
+    public void failed(String filepath) {
+	_pending.remove(filepath);
+	append(FAILED, filepath);
+    }
+
+    /**
+     * Syncs the pending records if the group is full or old enough.
+     */
+    public void maybeSync() {
+	if (_unsynced > 0 && (_unsynced >= _syncRecords || System.currentTimeMillis() - _lastSync >= _syncMillis)) {
+	    sync();
+	}
+    }
+
+    public void sync() {
+	try {
+	    _writer.flush();
+	    _stream.getFD().sync();
+	} catch (IOException e) {
+	    logger.severe("Can't sync journal " + _file.getAbsolutePath() + ": " + e.getMessage());
+	}
+	_unsynced = 0;
+	_lastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+	if (_writer != null) {
+	    sync();
+	    _writer.close();
+	}
+    }
+
+    private void append(char state, String filepath) {
+	try {
+	    writeRecord(_writer, state, filepath);
+	    _unsynced++;
+	    _records++;
+	    if (_records >= Math.max(COMPACT_MIN_RECORDS, (long) COMPACT_FACTOR * _pending.size())) {
+		compact();
+		return;
+	    }
+	} catch (IOException e) {
+	    logger.severe("Can't write to journal " + _file.getAbsolutePath() + ": " + e.getMessage());
+	}
+	maybeSync();
+    }
+
+    // The pending files are written and synced to a new journal that then replaces the current one, a crash meanwhile leaves the current
+    // one in place
+    private void compact() throws IOException {
+	File compacted = new File(_file.getAbsolutePath() + ".tmp");
+	FileOutputStream stream = new FileOutputStream(compacted);
+	try {
+	    Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+	    for (String filepath : _pending) {
+		writeRecord(writer, EMITTED, filepath);
+	    }
+	    writer.flush();
+	    stream.getFD().sync();
+	} finally {
+	    stream.close();
+	}
+	if (_writer != null) {
+	    sync();
+	    _writer.close();
+	}
+	boolean replaced = compacted.renameTo(_file);
+
+	// Appending goes on either way, a journal that couldn't be replaced is only compacted again once it has grown as much again
+	_stream = new FileOutputStream(_file, true);
+	_writer = new BufferedWriter(new OutputStreamWriter(_stream, StandardCharsets.UTF_8));
+	_records = _pending.size();
+	_unsynced = 0;
+	_lastSync = System.currentTimeMillis();
+	if (!replaced) {
+	    throw new IOException("Can't replace journal " + _file.getAbsolutePath());
+	}
+	GeneralUtils.syncFolder(_file.getAbsoluteFile().getParentFile());
+    }
+
+    private static void writeRecord(Writer writer, char state, String filepath) throws IOException {
+	writer.write(state);
+	writer.write(' ');
+	writer.write(filepath);
+	writer.write('\n');
+    }
+
+}
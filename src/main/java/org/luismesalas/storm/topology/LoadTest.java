@@ -0,0 +1,369 @@
+package org.luismesalas.storm.topology;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import org.apache.storm.Config;
+import org.apache.storm.LocalCluster;
+import org.apache.storm.generated.KillOptions;
+import org.luismesalas.storm.spout.DirectoryWatcher;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.SyntheticCorpus;
+
+/**
+ * In-process load test of the whole topology on a {@link LocalCluster}.
+ *
+ * A synthetic tree of files is generated in a staging folder and moved into the input folder once the topology is up. The latency of a
+ * file goes from that move until the spout moves it to the processed or failed folder. Every run appends a row to a CSV report, or a
+ * line to a JSON lines report, so settings passed with {@code --set} can be compared offline.
+ */
+public class LoadTest {
+
+    final static Logger logger = Logger.getLogger(LoadTest.class.getName());
+
+    private static final long POLL_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception {
+
+	ArgumentParser argParser = createArgParser();
+	Namespace parsedArguments;
+	try {
+	    parsedArguments = argParser.parseArgs(args);
+	} catch (ArgumentParserException e) {
+	    argParser.handleError(e);
+	    System.exit(1);
+	    return;
+	}
+
+	Path root = Files.createTempDirectory("loadtest");
+	Map<String, Object> report;
+	try {
+	    report = run(parsedArguments, root);
+	} finally {
+	    deleteTree(root);
+	}
+
+	String reportPath = parsedArguments.getString("report");
+	writeReport(new File(reportPath), report);
+	logger.info("Load test finished: " + report);
+	logger.info("Report written to " + reportPath);
+
+	// LocalCluster leaves non-daemon threads behind after its shutdown
+	System.exit(0);
+    }
+
+    private static Map<String, Object> run(Namespace parsedArguments, Path root) throws Exception {
+	Path staging = root.resolve("staging");
+	Path input = root.resolve("input");
+	Path output = root.resolve("output");
+	Files.createDirectories(input);
+	Files.createDirectories(output.resolve(GeneralUtils.PROCESSED_FOLDER));
+	Files.createDirectories(output.resolve(GeneralUtils.FAILED_FOLDER));
+
+	int files = parsedArguments.getInt("files");
+	Map<String, List<String>> filesByTopFolder = new LinkedHashMap<String, List<String>>();
+	long bytes = generate(parsedArguments, staging, filesByTopFolder);
+	logger.info("Generated " + files + " files, " + bytes + " bytes");
+
+	Properties overrides = new Properties();
+	List<String> settings = parsedArguments.getList("set");
+	if (settings != null) {
+	    for (String setting : settings) {
+		int separator = setting.indexOf('=');
+		if (separator <= 0) {
+		    throw new IllegalArgumentException("Invalid setting, expected key=value: " + setting);
+		}
+		overrides.setProperty(setting.substring(0, separator).trim(), setting.substring(separator + 1).trim());
+	    }
+	}
+
+	ArgumentParser topologyArgParser = TopologyFactory.createArgParser();
+	Namespace topologyArguments = topologyArgParser.parseArgs(new String[] { "-c", parsedArguments.getString("configuration"), "-i",
+		input.toString(), "-o", output.toString(), "-l", parsedArguments.getInt("limit").toString() });
+	Config conf = TopologyFactory.createConfig(topologyArgParser, topologyArguments, false, overrides);
+
+	MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	Map<String, Long> arrivals = new HashMap<String, Long>();
+	List<Long> latencies = new ArrayList<Long>(files);
+	Set<String> seen = new HashSet<String>();
+	int failed = 0;
+	long peakHeap = 0;
+	long start;
+	long end;
+
+	String topologyName = "LoadTest-" + new Date().getTime();
+	LocalCluster cluster = new LocalCluster();
+	DirectoryWatcher watcher = new DirectoryWatcher(output);
+	try {
+	    cluster.submitTopology(topologyName, conf, TopologyFactory.createBuilder(conf).createTopology());
+	    Thread.sleep(TimeUnit.SECONDS.toMillis(parsedArguments.getInt("startup_secs")));
+
+	    start = System.nanoTime();
+	    for (Map.Entry<String, List<String>> topFolder : filesByTopFolder.entrySet()) {
+		Files.move(staging.resolve(topFolder.getKey()), input.resolve(topFolder.getKey()));
+		long arrival = System.nanoTime();
+		for (String file : topFolder.getValue()) {
+		    arrivals.put(file, arrival);
+		}
+	    }
+
+	    long deadline = start + TimeUnit.SECONDS.toNanos(parsedArguments.getInt("timeout_secs"));
+	    List<Path> created = new ArrayList<Path>();
+	    while (seen.size() < files && System.nanoTime() < deadline) {
+		created.clear();
+		if (watcher.poll(created, POLL_MILLIS)) {
+		    // Events were lost, the files already seen are skipped below
+		    List<File> moved = new ArrayList<File>();
+		    GeneralUtils.getFilesRecursively(output.resolve(GeneralUtils.PROCESSED_FOLDER).toFile(), moved);
+		    GeneralUtils.getFilesRecursively(output.resolve(GeneralUtils.FAILED_FOLDER).toFile(), moved);
+		    for (File file : moved) {
+			created.add(file.toPath());
+		    }
+		}
+		long now = System.nanoTime();
+		for (Path path : created) {
+		    Path relative = output.relativize(path);
+		    if (relative.getNameCount() < 2) {
+			continue;
+		    }
+		    String folder = relative.getName(0).toString();
+		    String file = relative.subpath(1, relative.getNameCount()).toString();
+		    if ((!folder.equals(GeneralUtils.PROCESSED_FOLDER) && !folder.equals(GeneralUtils.FAILED_FOLDER)) || !seen.add(file)) {
+			continue;
+		    }
+		    if (folder.equals(GeneralUtils.FAILED_FOLDER)) {
+			failed++;
+		    }
+		    Long arrival = arrivals.get(file);
+		    if (arrival != null) {
+			latencies.add(TimeUnit.NANOSECONDS.toMillis(now - arrival));
+		    }
+		}
+		peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+	    }
+	    end = System.nanoTime();
+	} finally {
+	    watcher.close();
+	    try {
+		// Everything left in flight is dropped, the whole tree is deleted anyway
+		KillOptions killOptions = new KillOptions();
+		killOptions.set_wait_secs(0);
+		cluster.killTopologyWithOpts(topologyName, killOptions);
+	    } catch (Exception e) {
+		logger.warning("Can't kill topology: " + e.getMessage());
+	    }
+	    cluster.shutdown();
+	}
+
+	if (seen.size() < files) {
+	    logger.warning("Timed out with " + (files - seen.size()) + " files still in the topology");
+	}
+
+	double elapsedSecs = (end - start) / 1e9;
+	long[] sortedLatencies = new long[latencies.size()];
+	for (int i = 0; i < sortedLatencies.length; i++) {
+	    sortedLatencies[i] = latencies.get(i);
+	}
+	Arrays.sort(sortedLatencies);
+
+	Map<String, Object> report = new LinkedHashMap<String, Object>();
+	report.put("timestamp", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()));
+	report.put("files", files);
+	report.put("completed", seen.size() - failed);
+	report.put("failed", failed);
+	report.put("bytes", bytes);
+	report.put("languages", parsedArguments.getString("languages"));
+	report.put("min_size", parsedArguments.getInt("min_size"));
+	report.put("max_size", parsedArguments.getInt("max_size"));
+	report.put("depth", parsedArguments.getInt("depth"));
+	report.put("fanout", parsedArguments.getInt("fanout"));
+	report.put("settings", settings == null ? "" : String.join(";", settings));
+	report.put("elapsed_secs", round(elapsedSecs));
+	report.put("files_per_sec", round(seen.size() / elapsedSecs));
+	report.put("mb_per_sec", round(bytes / elapsedSecs / (1024 * 1024)));
+	report.put("p50_ms", percentile(sortedLatencies, 50));
+	report.put("p99_ms", percentile(sortedLatencies, 99));
+	report.put("max_ms", sortedLatencies.length == 0 ? 0 : sortedLatencies[sortedLatencies.length - 1]);
+	report.put("peak_heap_mb", round(peakHeap / (1024.0 * 1024)));
+	return report;
+    }
+
+    // Sizes are log-uniform between the minimum and the maximum, languages are assigned round robin
+    private static long generate(Namespace parsedArguments, Path staging, Map<String, List<String>> filesByTopFolder) throws IOException {
+	int files = parsedArguments.getInt("files");
+	int minSize = parsedArguments.getInt("min_size");
+	int maxSize = Math.max(minSize, parsedArguments.getInt("max_size"));
+	int depth = Math.max(1, parsedArguments.getInt("depth"));
+	int fanout = Math.max(1, parsedArguments.getInt("fanout"));
+	int vocabularySize = parsedArguments.getInt("vocabulary");
+	long seed = parsedArguments.getLong("seed");
+	String[] languages = parsedArguments.getString("languages").split("\\+");
+
+	SyntheticCorpus[] corpora = new SyntheticCorpus[languages.length];
+	for (int i = 0; i < languages.length; i++) {
+	    corpora[i] = new SyntheticCorpus(languages[i], vocabularySize, seed + i);
+	}
+
+	Random random = new Random(seed);
+	long bytes = 0;
+	for (int i = 0; i < files; i++) {
+	    StringBuilder relative = new StringBuilder();
+	    int folder = i;
+	    for (int level = 0; level < depth; level++) {
+		relative.append('d').append(folder % fanout).append(File.separatorChar);
+		folder /= fanout;
+	    }
+	    relative.append('f').append(i).append(".txt");
+
+	    int size = (int) Math.round(Math.exp(Math.log(minSize) + random.nextDouble() * (Math.log(maxSize) - Math.log(minSize))));
+	    byte[] content = corpora[i % corpora.length].text(size, seed + i).getBytes(StandardCharsets.UTF_8);
+	    Path file = staging.resolve(relative.toString());
+	    Files.createDirectories(file.getParent());
+	    Files.write(file, content);
+	    bytes += content.length;
+
+	    String topFolder = relative.substring(0, relative.indexOf(File.separator));
+	    List<String> topFolderFiles = filesByTopFolder.get(topFolder);
+	    if (topFolderFiles == null) {
+		topFolderFiles = new ArrayList<String>();
+		filesByTopFolder.put(topFolder, topFolderFiles);
+	    }
+	    topFolderFiles.add(relative.toString());
+	}
+	return bytes;
+    }
+
+    private static void writeReport(File reportFile, Map<String, Object> report) throws IOException {
+	boolean json = reportFile.getName().endsWith(".json");
+	boolean header = !json && (!reportFile.exists() || reportFile.length() == 0);
+	StringBuilder line = new StringBuilder();
+
+	if (header) {
+	    line.append(String.join(",", report.keySet())).append('\n');
+	}
+	if (json) {
+	    line.append('{');
+	    for (Map.Entry<String, Object> entry : report.entrySet()) {
+		if (line.length() > 1) {
+		    line.append(", ");
+		}
+		line.append('"').append(entry.getKey()).append("\": ");
+		if (entry.getValue() instanceof Number) {
+		    line.append(entry.getValue());
+		} else {
+		    line.append('"').append(entry.getValue().toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+	    }
+	    line.append('}');
+	} else {
+	    boolean first = true;
+	    for (Object value : report.values()) {
+		if (!first) {
+		    line.append(',');
+		}
+		first = false;
+		String text = value.toString();
+		line.append(text.contains(",") || text.contains("\"") ? '"' + text.replace("\"", "\"\"") + '"' : text);
+	    }
+	}
+	line.append('\n');
+
+	Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile, true), StandardCharsets.UTF_8);
+	try {
+	    writer.write(line.toString());
+	} finally {
+	    writer.close();
+	}
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+	if (sorted.length == 0) {
+	    return 0;
+	}
+	int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+	return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double round(double value) {
+	return Math.round(value * 100) / 100.0;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+	if (!Files.exists(root)) {
+	    return;
+	}
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+		Files.delete(file);
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+		Files.delete(dir);
+		return FileVisitResult.CONTINUE;
+	    }
+	});
+    }
+
+    private static ArgumentParser createArgParser() {
+
+	ArgumentParser argParser = ArgumentParsers.newArgumentParser("LoadTest").description(
+		"Runs the topology on a local cluster over a generated tree of files and reports throughput, latency and heap usage.");
+
+	argParser.addArgument("-c", "--configuration").required(true).help("Storm topology and global configuration file.\n");
+	argParser.addArgument("--files").type(Integer.class).setDefault(1000).help("Number of files to generate. Default: 1000\n");
+	argParser.addArgument("--min-size").type(Integer.class).setDefault(1024).help("Minimum file size in chars. Default: 1024\n");
+	argParser.addArgument("--max-size").type(Integer.class).setDefault(65536).help("Maximum file size in chars. Default: 65536\n");
+	argParser.addArgument("--languages").setDefault("en+es+de")
+		.help("Languages of the files joined with '+', from " + SyntheticCorpus.ALL_LANGUAGES + ". Default: en+es+de\n");
+	argParser.addArgument("--vocabulary").type(Integer.class).setDefault(5000).help("Distinct words per language. Default: 5000\n");
+	argParser.addArgument("--depth").type(Integer.class).setDefault(2).help("Folder nesting depth. Default: 2\n");
+	argParser.addArgument("--fanout").type(Integer.class).setDefault(4).help("Subfolders per folder. Default: 4\n");
+	argParser.addArgument("--seed").type(Long.class).setDefault(1L).help("Seed of the generated files. Default: 1\n");
+	argParser.addArgument("-l", "--limit").type(Integer.class).setDefault(70).help("Language probability limit. Default: 70\n");
+	argParser.addArgument("--set").action(Arguments.append()).metavar("KEY=VALUE")
+		.help("Replaces an option of the configuration file, e.g. --set spouts=64 --set lang_identifier_executors=4\n");
+	argParser.addArgument("--startup-secs").type(Integer.class).setDefault(10)
+		.help("Wait for the topology to start before moving the files in. Default: 10\n");
+	argParser.addArgument("--timeout-secs").type(Integer.class).setDefault(600).help("Give up after this time. Default: 600\n");
+	argParser.addArgument("--report").setDefault("loadtest-report.csv")
+		.help("Report file, a row is appended on every run. A .json file gets one JSON object per line. "
+			+ "Default: loadtest-report.csv\n");
+
+	return argParser;
+    }
+
+}
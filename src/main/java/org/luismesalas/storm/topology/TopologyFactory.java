@@ -0,0 +1,258 @@
+package org.luismesalas.storm.topology;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import org.apache.storm.Config;
+import org.apache.storm.topology.BoltDeclarer;
+import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.topology.base.BaseWindowedBolt;
+import org.apache.storm.topology.base.BaseWindowedBolt.Duration;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.utils.Utils;
+import org.luismesalas.storm.bolt.ChunkMerger;
+import org.luismesalas.storm.bolt.CorpusStats;
+import org.luismesalas.storm.bolt.LangIdentifier;
+import org.luismesalas.storm.bolt.StatsToFile;
+import org.luismesalas.storm.bolt.TextTokenizer;
+import org.luismesalas.storm.metric.FileMetricsConsumer;
+import org.luismesalas.storm.model.LanguageList;
+import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.model.TokenFrequencyMap;
+import org.luismesalas.storm.serialization.LanguageListSerializer;
+import org.luismesalas.storm.serialization.LanguageSerializer;
+import org.luismesalas.storm.serialization.TokenFrequencyMapSerializer;
+import org.luismesalas.storm.spout.FolderWatcher;
+import org.luismesalas.storm.util.GeneralUtils;
+import org.luismesalas.storm.util.StatsStore;
+
+/**
+ * Topology wiring and configuration shared by the cluster and the local topologies.
+ */
+public final class TopologyFactory {
+
+    public static final String FOLDER_WATCHER = "folder-watcher";
+    public static final String LANG_IDENTIFIER = "lang-identifier";
+    public static final String TEXT_TOKENIZER = "text-tokenizer";
+    public static final String CHUNK_MERGER = "chunk-merger";
+    public static final String STATS_TO_FILE = "stats-to-file";
+    public static final String CORPUS_STATS = "corpus-stats";
+
+    private static final int DEFAULT_PROB = 70;
+    private static final String DEFAULT_OUTPUT = "/mm_disk/output";
+    private static final String DEFAULT_INPUT = "/mm_disk/input";
+
+    private static final String GROUPING_SHUFFLE = "shuffle";
+    private static final String GROUPING_LOCAL_OR_SHUFFLE = "local_or_shuffle";
+    private static final String GROUPING_FIELDS = "fields";
+    // Only for the tokenizer, the stream of the language identifier is the one with the top language
+    private static final String GROUPING_LANGUAGE = "language";
+    private static final String GROUPING_LANGUAGE_COMPONENT = "text_tokenizer";
+
+    private TopologyFactory() {
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static TopologyBuilder createBuilder(Map conf) {
+	TopologyBuilder builder = new TopologyBuilder();
+
+	// FolderWatcher is not partition aware, more than one instance would emit every file several times
+	builder.setSpout(FOLDER_WATCHER, new FolderWatcher(), 1);
+
+	BoltDeclarer langIdentifier = builder.setBolt(LANG_IDENTIFIER, new LangIdentifier(), executors(conf, "lang_identifier"));
+	setTasks(langIdentifier, conf, "lang_identifier");
+	group(langIdentifier, conf, "lang_identifier", FOLDER_WATCHER);
+
+	BoltDeclarer textTokenizer = builder.setBolt(TEXT_TOKENIZER, new TextTokenizer(), executors(conf, "text_tokenizer"));
+	setTasks(textTokenizer, conf, "text_tokenizer");
+	group(textTokenizer, conf, "text_tokenizer", LANG_IDENTIFIER);
+
+	String statsSource = TEXT_TOKENIZER;
+	if (GeneralUtils.getConfInt(conf, "chunk_size", 0) > 0) {
+	    // Every chunk of a file has to reach the same merger
+	    BoltDeclarer chunkMerger = builder.setBolt(CHUNK_MERGER, new ChunkMerger(), executors(conf, "chunk_merger"));
+	    setTasks(chunkMerger, conf, "chunk_merger");
+	    chunkMerger.fieldsGrouping(TEXT_TOKENIZER, new Fields("filepath"));
+	    statsSource = CHUNK_MERGER;
+	}
+
+	BoltDeclarer statsToFile = builder.setBolt(STATS_TO_FILE, new StatsToFile(), executors(conf, "stats_to_file"));
+	setTasks(statsToFile, conf, "stats_to_file");
+	if (StatsStore.SEGMENTS.equals(GeneralUtils.getConfString(conf, "output_store", StatsStore.FILES))) {
+	    // Buffered records are flushed and acked on every tick
+	    statsToFile.addConfiguration(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, GeneralUtils.getConfInt(conf, "segment_flush_secs", 1));
+	} else if (GeneralUtils.getConfInt(conf, "stats_writer_threads", 0) > 0) {
+	    // Written stats are synced and acked on every tick
+	    statsToFile.addConfiguration(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS,
+		    GeneralUtils.getConfInt(conf, "stats_writer_commit_secs", 1));
+	}
+	group(statsToFile, conf, "stats_to_file", statsSource);
+	if (GeneralUtils.getConfBoolean(conf, "dedup_enabled", false)) {
+	    // Files with the same content as one already processed skip language identification and tokenization
+	    group(statsToFile, conf, "stats_to_file", FOLDER_WATCHER, GeneralUtils.CACHED_STREAM);
+	}
+
+	if (GeneralUtils.getConfBoolean(conf, "corpus_stats_enabled", false)) {
+	    // Every language has to reach the same task to be counted as a whole
+	    BoltDeclarer corpusStats = builder.setBolt(CORPUS_STATS, corpusStatsWindow(conf), executors(conf, "corpus_stats"));
+	    setTasks(corpusStats, conf, "corpus_stats");
+	    corpusStats.fieldsGrouping(TEXT_TOKENIZER, GeneralUtils.CORPUS_STREAM, new Fields("language"));
+	}
+
+	if (GeneralUtils.getConfInt(conf, "batch_max_files", 0) > 1) {
+	    groupBatch(langIdentifier, conf, "lang_identifier", FOLDER_WATCHER);
+	    groupBatch(textTokenizer, conf, "text_tokenizer", LANG_IDENTIFIER);
+	    groupBatch(statsToFile, conf, "stats_to_file", TEXT_TOKENIZER);
+	}
+
+	return builder;
+    }
+
+    public static Config createConfig(ArgumentParser argParser, Namespace parsedArguments, boolean debug) throws ArgumentParserException,
+	    IOException {
+	return createConfig(argParser, parsedArguments, debug, new Properties());
+    }
+
+    /**
+     * @param overrides
+     *            options that replace the ones of the configuration file
+     */
+    public static Config createConfig(ArgumentParser argParser, Namespace parsedArguments, boolean debug, Properties overrides)
+	    throws ArgumentParserException, IOException {
+	Config conf = new Config();
+
+	String configFileParam = parsedArguments.getString("configuration");
+	String inputPathParam = parsedArguments.getString("input");
+	String outputPathParam = parsedArguments.getString("output");
+	Integer limitParam = parsedArguments.getInt("limit");
+
+	if (limitParam < 0 || limitParam > 100) {
+	    throw new ArgumentParserException("Invalid value for limit. Allowed value: a positive integer between 0 and 100.", argParser);
+	}
+
+	Properties topologyProperties = new Properties();
+	InputStream inputStreamConfig = new FileInputStream(configFileParam);
+	try {
+	    topologyProperties.load(inputStreamConfig);
+	} finally {
+	    inputStreamConfig.close();
+	}
+	topologyProperties.putAll(overrides);
+
+	for (Entry<Object, Object> obj : topologyProperties.entrySet()) {
+	    conf.put(obj.getKey().toString(), obj.getValue().toString());
+	}
+
+	conf.put("input", inputPathParam);
+	conf.put("output", outputPathParam);
+	conf.put("limit", new Double(new Double(limitParam) / 100));
+	conf.setDebug(debug);
+
+	conf.put(Config.TOPOLOGY_MAX_SPOUT_PENDING, Integer.valueOf(topologyProperties.getProperty("spouts")));
+	conf.put(Config.TOPOLOGY_WORKERS, Integer.valueOf(topologyProperties.getProperty("workers")));
+	conf.put(Config.TOPOLOGY_WORKER_CHILDOPTS, topologyProperties.getProperty("worker_childopts"));
+	conf.put(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, new Integer(topologyProperties.getProperty("message_timeout")));
+
+	// Tuple values sent between workers, anything else falls back to Java serialization unless disabled
+	conf.registerSerialization(LanguageSerializable.class, LanguageSerializer.class);
+	conf.registerSerialization(LanguageList.class, LanguageListSerializer.class);
+	conf.registerSerialization(TokenFrequencyMap.class, TokenFrequencyMapSerializer.class);
+	// Metric snapshots keep the order of their keys, they go to the metrics consumer through the same serialization
+	conf.registerSerialization(LinkedHashMap.class);
+	conf.setFallBackOnJavaSerialization(GeneralUtils.getConfBoolean(conf, "java_serialization_fallback", true));
+
+	// Snapshots of the component metrics go to a local file when one is configured
+	String metricsFile = GeneralUtils.getConfString(conf, "metrics_file", null);
+	if (metricsFile != null) {
+	    conf.registerMetricsConsumer(FileMetricsConsumer.class, metricsFile, 1);
+	}
+
+	return conf;
+    }
+
+    public static ArgumentParser createArgParser() {
+
+	ArgumentParser argParser = ArgumentParsers.newArgumentParser("storm-example.jar").description(
+		"This topology is an example that reads a folder and classify all the files inside this folder by language.");
+
+	argParser.addArgument("-c", "--configuration").required(true).help("Storm topology and global configuration file.\n");
+	argParser.addArgument("-i", "--input").required(false).setDefault(DEFAULT_INPUT)
+		.help("Input folder to process. Default: " + DEFAULT_INPUT + "\n");
+	argParser.addArgument("-o", "--output").required(false).setDefault(DEFAULT_OUTPUT)
+		.help("Output folder to store the process result. Default: " + DEFAULT_OUTPUT + "\n");
+	argParser.addArgument("-l", "--limit").type(Integer.class).required(false).setDefault(DEFAULT_PROB)
+		.help("Language probability limit. Allowed value: a positive integer between 0 and 100. Default: " + DEFAULT_PROB + ".\n");
+
+	return argParser;
+    }
+
+    /**
+     * Storm keeps the tuples of the window until they leave it, and requires the window length plus the sliding interval to fit in the
+     * message timeout. A sliding interval of 0 or as long as the window makes it a tumbling window.
+     */
+    @SuppressWarnings("rawtypes")
+    private static BaseWindowedBolt corpusStatsWindow(Map conf) {
+	int windowSecs = GeneralUtils.getConfInt(conf, "corpus_stats_window_secs", 20);
+	int slideSecs = GeneralUtils.getConfInt(conf, "corpus_stats_slide_secs", 10);
+	if (slideSecs <= 0 || slideSecs >= windowSecs) {
+	    return new CorpusStats().withTumblingWindow(new Duration(windowSecs, TimeUnit.SECONDS));
+	}
+	return new CorpusStats().withWindow(new Duration(windowSecs, TimeUnit.SECONDS), new Duration(slideSecs, TimeUnit.SECONDS));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static int executors(Map conf, String component) {
+	return GeneralUtils.getConfInt(conf, component + "_executors", 1);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void setTasks(BoltDeclarer declarer, Map conf, String component) {
+	int tasks = GeneralUtils.getConfInt(conf, component + "_tasks", 0);
+	if (tasks > 0) {
+	    declarer.setNumTasks(tasks);
+	}
+    }
+
+    // Batches have no filepath or language field, fields and language groupings fall back to shuffle
+    @SuppressWarnings("rawtypes")
+    private static void groupBatch(BoltDeclarer declarer, Map conf, String component, String source) {
+	if (GROUPING_LOCAL_OR_SHUFFLE.equals(GeneralUtils.getConfString(conf, component + "_grouping", GROUPING_SHUFFLE))) {
+	    declarer.localOrShuffleGrouping(source, GeneralUtils.BATCH_STREAM);
+	} else {
+	    declarer.shuffleGrouping(source, GeneralUtils.BATCH_STREAM);
+	}
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void group(BoltDeclarer declarer, Map conf, String component, String source) {
+	group(declarer, conf, component, source, Utils.DEFAULT_STREAM_ID);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void group(BoltDeclarer declarer, Map conf, String component, String source, String stream) {
+	String grouping = GeneralUtils.getConfString(conf, component + "_grouping", GROUPING_SHUFFLE);
+	if (GROUPING_LOCAL_OR_SHUFFLE.equals(grouping)) {
+	    declarer.localOrShuffleGrouping(source, stream);
+	} else if (GROUPING_FIELDS.equals(grouping)) {
+	    declarer.fieldsGrouping(source, stream, new Fields("filepath"));
+	} else if (GROUPING_LANGUAGE.equals(grouping) && GROUPING_LANGUAGE_COMPONENT.equals(component)) {
+	    declarer.fieldsGrouping(source, stream, new Fields("language"));
+	} else if (GROUPING_SHUFFLE.equals(grouping)) {
+	    declarer.shuffleGrouping(source, stream);
+	} else {
+	    throw new IllegalArgumentException("Unknown grouping for " + component + ": " + grouping);
+	}
+    }
+
+}
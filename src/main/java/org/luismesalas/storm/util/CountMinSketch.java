@@ -0,0 +1,66 @@
+package org.luismesalas.storm.util;
+
+/**
+ * Count-Min Sketch of token counts.
+ *
+ * Counts are kept in {@code depth} rows of {@code width} counters, so memory doesn't depend on the number of distinct tokens. Estimates
+ * never undercount as long as no count goes below zero, and overcount by at most {@code e / width} of the total with probability
+ * {@code 1 - e^-depth}. Counts can be added and removed again, which lets a sliding window forget the tuples that leave it.
+ */
+public final class CountMinSketch {
+
+    private final int _depth;
+    private final int _mask;
+    private final long[] _counts;
+    private long _total;
+
+    /**
+     * @param width
+     *            counters per row, rounded up to a power of two
+     */
+    public CountMinSketch(int width, int depth) {
+	int rowWidth = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+	_depth = Math.max(1, depth);
+	_mask = rowWidth - 1;
+	_counts = new long[_depth * rowWidth];
+    }
+
+    public void add(String token, long count) {
+	int hash = token.hashCode();
+	for (int row = 0; row < _depth; row++) {
+	    _counts[index(hash, row)] += count;
+	}
+	_total += count;
+    }
+
+    public long estimate(String token) {
+	int hash = token.hashCode();
+	long estimate = Long.MAX_VALUE;
+	for (int row = 0; row < _depth; row++) {
+	    estimate = Math.min(estimate, _counts[index(hash, row)]);
+	}
+	return Math.max(0, estimate);
+    }
+
+    /**
+     * @return sum of all the counts added
+     */
+    public long getTotal() {
+	return _total;
+    }
+
+    // Every row mixes the token hash with its own seed, so two tokens sharing a counter in a row are unlikely to share it in the others
+    private int index(int hash, int row) {
+	return row * (_mask + 1) + (mix(hash + row * 0x9e3779b9) & _mask);
+    }
+
+    private static int mix(int hash) {
+	hash ^= hash >>> 16;
+	hash *= 0x85ebca6b;
+	hash ^= hash >>> 13;
+	hash *= 0xc2b2ae35;
+	hash ^= hash >>> 16;
+	return hash;
+    }
+
+}
@@ -0,0 +1,319 @@
+package org.luismesalas.storm.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.luismesalas.storm.model.LanguageList;
+import org.luismesalas.storm.model.LanguageSerializable;
+import org.luismesalas.storm.model.TokenFrequencyMap;
+
+/**
+ * Worker wide cache of the results of documents already processed, by a hash of their content.
+ *
+ * Entries are evicted in LRU order once the cache holds {@code dedup_cache_max_entries} documents or its estimated size goes over
+ * {@code dedup_cache_max_mb}. When {@code dedup_cache_file} is set the cache is loaded from it on creation and saved to it every
+ * {@code dedup_cache_save_secs} seconds and on shutdown. Workers on the same host sharing the file overwrite each other's snapshot, and
+ * any of them is a valid cache to start from.
+ *
+ * The spout looks documents up and the tokenizers of its worker fill the cache, so with several workers only documents tokenized next to
+ * the spout are cached. The local_or_shuffle grouping keeps them there.
+ */
+public final class DedupCache {
+
+    private static final Logger logger = Logger.getLogger(DedupCache.class.getName());
+
+    private static final int FILE_MAGIC = 0x44444331;
+    private static final long ENTRY_WEIGHT = 96;
+    private static final long LANGUAGE_WEIGHT = 48;
+    private static final long TOKEN_WEIGHT = 56;
+    // Longer tokens don't fit in the modified UTF-8 strings of the cache file
+    private static final int MAX_TOKEN_LENGTH = 16 * 1024;
+
+    private static DedupCache instance;
+
+    private final int _maxEntries;
+    private final long _maxBytes;
+    private final File _file;
+    private final LinkedHashMap<Long, Entry> _entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    private long _bytes;
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+    private boolean _dirty;
+
+    DedupCache(int maxEntries, long maxBytes, File file) {
+	_maxEntries = Math.max(1, maxEntries);
+	_maxBytes = Math.max(1, maxBytes);
+	_file = file;
+    }
+
+    /**
+     * @return the cache of this worker, created by the first component that asks for it
+     */
+    public static synchronized DedupCache getInstance(@SuppressWarnings("rawtypes") Map conf) {
+	if (instance == null) {
+	    String file = GeneralUtils.getConfString(conf, "dedup_cache_file", null);
+	    instance = new DedupCache(GeneralUtils.getConfInt(conf, "dedup_cache_max_entries", 10000), GeneralUtils.getConfLong(conf,
+		    "dedup_cache_max_mb", 64) * 1024 * 1024, file == null ? null : new File(file));
+	    if (instance._file != null) {
+		instance.load();
+		instance.startSaving(GeneralUtils.getConfLong(conf, "dedup_cache_save_secs", 60) * 1000);
+	    }
+	}
+	return instance;
+    }
+
+    /**
+     * 64 bit hash of the UTF-16 code units of the content, with the block and finalization mixing of Murmur3.
+     */
+    public static long hash(String content) {
+	final long c1 = 0x87c37b91114253d5L;
+	final long c2 = 0x4cf5ad432745937fL;
+	long h = 0x9368e53c2f6af274L;
+	int length = content.length();
+	int i = 0;
+	for (; i + 4 <= length; i += 4) {
+	    long k = content.charAt(i) | (long) content.charAt(i + 1) << 16 | (long) content.charAt(i + 2) << 32
+		    | (long) content.charAt(i + 3) << 48;
+	    k *= c1;
+	    k = Long.rotateLeft(k, 31);
+	    k *= c2;
+	    h ^= k;
+	    h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+	}
+	long k = 0;
+	for (int shift = 0; i < length; i++, shift += 16) {
+	    k |= (long) content.charAt(i) << shift;
+	}
+	k *= c1;
+	k = Long.rotateLeft(k, 31);
+	k *= c2;
+	h ^= k;
+	h ^= length;
+	h ^= h >>> 33;
+	h *= 0xff51afd7ed558ccdL;
+	h ^= h >>> 33;
+	h *= 0xc4ceb9fe1a85ec53L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    /**
+     * @return the cached results of a document with this hash and length, or null if there is none
+     */
+    public synchronized Entry get(long hash, int length) {
+	Entry entry = _entries.get(hash);
+	if (entry == null || entry.length != length) {
+	    _misses++;
+	    return null;
+	}
+	_hits++;
+	return entry;
+    }
+
+    public synchronized void put(long hash, int length, List<LanguageSerializable> languages, Map<String, Integer> tokensFrequency) {
+	Entry entry = new Entry(length, languages, tokensFrequency);
+	if (entry.maxTokenLength > MAX_TOKEN_LENGTH) {
+	    return;
+	}
+	Entry previous = _entries.put(hash, entry);
+	if (previous != null) {
+	    _bytes -= previous.weight;
+	}
+	_bytes += entry.weight;
+	_dirty = true;
+
+	Iterator<Entry> eldest = _entries.values().iterator();
+	while (eldest.hasNext() && _entries.size() > 1 && (_entries.size() > _maxEntries || _bytes > _maxBytes)) {
+	    _bytes -= eldest.next().weight;
+	    eldest.remove();
+	    _evictions++;
+	}
+    }
+
+    /**
+     * @return entries, estimated bytes, hits, misses and evictions since the worker started
+     */
+    public synchronized Map<String, Long> getCounters() {
+	Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	counters.put("entries", (long) _entries.size());
+	counters.put("bytes", _bytes);
+	counters.put("hits", _hits);
+	counters.put("misses", _misses);
+	counters.put("evictions", _evictions);
+	return counters;
+    }
+
+    private void startSaving(final long saveMillis) {
+	Thread saver = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		while (true) {
+		    try {
+			Thread.sleep(saveMillis);
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		    save();
+		}
+	    }
+	}, "dedup-cache-saver");
+	saver.setDaemon(true);
+	saver.start();
+
+	Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		save();
+	    }
+	}, "dedup-cache-shutdown"));
+    }
+
+    // Entries are copied under the lock and written outside it, from the least to the most recently used
+    void save() {
+	List<Map.Entry<Long, Entry>> entries;
+	synchronized (this) {
+	    if (!_dirty) {
+		return;
+	    }
+	    entries = new ArrayList<Map.Entry<Long, Entry>>(_entries.entrySet());
+	    _dirty = false;
+	}
+
+	File tmp = null;
+	try {
+	    File parent = _file.getAbsoluteFile().getParentFile();
+	    if (!parent.exists()) {
+		parent.mkdirs();
+	    }
+	    tmp = File.createTempFile(_file.getName(), ".tmp", parent);
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+	    try {
+		out.writeInt(FILE_MAGIC);
+		out.writeInt(entries.size());
+		for (Map.Entry<Long, Entry> entry : entries) {
+		    out.writeLong(entry.getKey());
+		    entry.getValue().write(out);
+		}
+	    } finally {
+		out.close();
+	    }
+	    if (!tmp.renameTo(_file)) {
+		throw new IOException("Can't replace " + _file.getAbsolutePath());
+	    }
+	} catch (IOException e) {
+	    logger.warning("Can't save dedup cache: " + e.getMessage());
+	    if (tmp != null) {
+		tmp.delete();
+	    }
+	}
+    }
+
+    private void load() {
+	if (!_file.exists()) {
+	    return;
+	}
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), 64 * 1024));
+	    try {
+		if (in.readInt() != FILE_MAGIC) {
+		    throw new IOException("Unknown format");
+		}
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+		    long hash = in.readLong();
+		    Entry entry = Entry.read(in);
+		    put(hash, entry.length, entry.languages, entry.tokensFrequency);
+		}
+	    } finally {
+		in.close();
+	    }
+	    _dirty = false;
+	    logger.info("Dedup cache loaded with " + _entries.size() + " documents from " + _file.getAbsolutePath());
+	} catch (IOException e) {
+	    logger.warning("Can't load dedup cache " + _file.getAbsolutePath() + ": " + e.getMessage());
+	}
+    }
+
+    public static final class Entry {
+	final int length;
+	final List<LanguageSerializable> languages;
+	final Map<String, Integer> tokensFrequency;
+	final long weight;
+	final int maxTokenLength;
+
+	Entry(int length, List<LanguageSerializable> languages, Map<String, Integer> tokensFrequency) {
+	    this.length = length;
+	    this.languages = languages;
+	    this.tokensFrequency = tokensFrequency;
+	    long tokensWeight = 0;
+	    int maxLength = 0;
+	    for (String token : tokensFrequency.keySet()) {
+		tokensWeight += TOKEN_WEIGHT + 2 * token.length();
+		maxLength = Math.max(maxLength, token.length());
+	    }
+	    this.maxTokenLength = maxLength;
+	    this.weight = ENTRY_WEIGHT + LANGUAGE_WEIGHT * languages.size() + tokensWeight;
+	}
+
+	/**
+	 * Shared between the tuples of every hit, not to be modified.
+	 */
+	public List<LanguageSerializable> getLanguages() {
+	    return languages;
+	}
+
+	/**
+	 * Shared between the tuples of every hit, not to be modified.
+	 */
+	public Map<String, Integer> getTokensFrequency() {
+	    return tokensFrequency;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+	    out.writeInt(length);
+	    out.writeInt(languages.size());
+	    for (LanguageSerializable language : languages) {
+		out.writeUTF(language.getLang());
+		out.writeDouble(language.getProb() == null ? Double.NaN : language.getProb());
+	    }
+	    out.writeInt(tokensFrequency.size());
+	    for (Map.Entry<String, Integer> token : tokensFrequency.entrySet()) {
+		out.writeUTF(token.getKey());
+		out.writeInt(token.getValue());
+	    }
+	}
+
+	static Entry read(DataInputStream in) throws IOException {
+	    int length = in.readInt();
+	    int languageCount = in.readInt();
+	    LanguageList languages = new LanguageList(languageCount);
+	    for (int i = 0; i < languageCount; i++) {
+		String lang = in.readUTF();
+		double prob = in.readDouble();
+		languages.add(new LanguageSerializable(lang, Double.isNaN(prob) ? null : prob));
+	    }
+	    int tokenCount = in.readInt();
+	    TokenFrequencyMap tokensFrequency = new TokenFrequencyMap((int) (tokenCount / 0.75f) + 1);
+	    for (int i = 0; i < tokenCount; i++) {
+		String token = in.readUTF();
+		tokensFrequency.put(token, in.readInt());
+	    }
+	    return new Entry(length, languages, tokensFrequency);
+	}
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.luismesalas.storm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Reads input documents with a size policy and charset detection.
+ *
+ * Small files are read in one go. Files over the mapping threshold are memory mapped and decoded straight from the mapping, so their bytes
+ * never land on the heap. Chars are decoded into a single array sized from the charset and copied once into the document. Files too large
+ * for a document are rejected whatever the policy. The charset comes from the byte order mark if there is one, otherwise UTF-8 is tried
+ * and the fallback charset is used if the content is not valid UTF-8.
+ */
+public class DocumentReader {
+
+    public static final String POLICY_TRUNCATE = "truncate";
+    public static final String POLICY_REJECT = "reject";
+
+    // Largest array most JVMs can allocate, so also the largest document and mapping
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long _maxBytes;
+    private final String _policy;
+    private final Charset _fallbackCharset;
+    private final long _mapThreshold;
+
+    public DocumentReader(long maxBytes, String policy, Charset fallbackCharset, long mapThreshold) {
+	_maxBytes = maxBytes;
+	_policy = policy;
+	_fallbackCharset = fallbackCharset;
+	_mapThreshold = mapThreshold;
+    }
+
+    public static DocumentReader fromConf(@SuppressWarnings("rawtypes") Map conf) {
+	return new DocumentReader(GeneralUtils.getConfLong(conf, "max_file_size", 0), GeneralUtils.getConfString(conf,
+		"max_file_size_policy", POLICY_REJECT), Charset.forName(GeneralUtils.getConfString(conf, "fallback_charset", "ISO-8859-1")),
+		GeneralUtils.getConfLong(conf, "mmap_threshold", 1024 * 1024));
+    }
+
+    /**
+     * @throws FileTooLargeException
+     *             if the file is over the maximum size and the policy is reject
+     */
+    public String read(File file) throws IOException {
+	long size = file.length();
+	boolean truncated = false;
+	if (_maxBytes > 0 && size > _maxBytes) {
+	    if (!POLICY_TRUNCATE.equals(_policy)) {
+		throw new FileTooLargeException(file.getAbsolutePath() + " is " + size + " bytes, over the " + _maxBytes + " bytes limit");
+	    }
+	    size = _maxBytes;
+	    truncated = true;
+	}
+	if (size > MAX_ARRAY_SIZE) {
+	    throw new FileTooLargeException(file.getAbsolutePath() + " is " + size + " bytes, too large to be read as a document");
+	}
+
+	if (size < _mapThreshold) {
+	    byte[] bytes = truncated ? readPrefix(file, (int) size) : Files.readAllBytes(file.toPath());
+	    return decode(ByteBuffer.wrap(bytes), truncated);
+	}
+
+	RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = randomAccessFile.getChannel();
+	    return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), truncated);
+	} finally {
+	    randomAccessFile.close();
+	}
+    }
+
+    private String decode(ByteBuffer bytes, boolean truncated) throws IOException {
+	Charset bomCharset = detectBom(bytes);
+	if (bomCharset != null) {
+	    return decode(bytes, bomCharset, CodingErrorAction.REPLACE, truncated);
+	}
+
+	int start = bytes.position();
+	try {
+	    return decode(bytes, StandardCharsets.UTF_8, CodingErrorAction.REPORT, truncated);
+	} catch (CharacterCodingException e) {
+	    bytes.position(start);
+	    return decode(bytes, _fallbackCharset, CodingErrorAction.REPLACE, truncated);
+	}
+    }
+
+    private static String decode(ByteBuffer bytes, Charset charset, CodingErrorAction errorAction, boolean truncated) throws IOException {
+	CharsetDecoder decoder = charset.newDecoder().onMalformedInput(errorAction).onUnmappableCharacter(errorAction);
+	long expected = (long) Math.ceil(bytes.remaining() * (double) decoder.averageCharsPerByte()) + 16;
+	CharBuffer chars = CharBuffer.allocate((int) Math.min(MAX_ARRAY_SIZE, expected));
+
+	while (true) {
+	    // A truncated file may end in the middle of a multibyte char, the incomplete bytes are left undecoded
+	    CoderResult coderResult = decoder.decode(bytes, chars, !truncated);
+	    if (coderResult.isError()) {
+		coderResult.throwException();
+	    }
+	    if (coderResult.isUnderflow()) {
+		break;
+	    }
+	    chars = grow(chars);
+	}
+	if (!truncated) {
+	    while (decoder.flush(chars).isOverflow()) {
+		chars = grow(chars);
+	    }
+	}
+	return new String(chars.array(), 0, chars.position());
+    }
+
+    // Only needed when the content decodes to more chars than the charset averages
+    private static CharBuffer grow(CharBuffer chars) throws IOException {
+	if (chars.capacity() >= MAX_ARRAY_SIZE) {
+	    throw new FileTooLargeException("Decoded content is over " + MAX_ARRAY_SIZE + " chars");
+	}
+	CharBuffer grown = CharBuffer.allocate((int) Math.min(MAX_ARRAY_SIZE, chars.capacity() + (long) chars.capacity() / 2 + 16));
+	chars.flip();
+	grown.put(chars);
+	return grown;
+    }
+
+    private static Charset detectBom(ByteBuffer bytes) {
+	int p = bytes.position();
+	int remaining = bytes.remaining();
+	if (remaining >= 3 && (bytes.get(p) & 0xFF) == 0xEF && (bytes.get(p + 1) & 0xFF) == 0xBB && (bytes.get(p + 2) & 0xFF) == 0xBF) {
+	    bytes.position(p + 3);
+	    return StandardCharsets.UTF_8;
+	}
+	if (remaining >= 2 && (bytes.get(p) & 0xFF) == 0xFE && (bytes.get(p + 1) & 0xFF) == 0xFF) {
+	    bytes.position(p + 2);
+	    return StandardCharsets.UTF_16BE;
+	}
+	if (remaining >= 2 && (bytes.get(p) & 0xFF) == 0xFF && (bytes.get(p + 1) & 0xFF) == 0xFE) {
+	    bytes.position(p + 2);
+	    return StandardCharsets.UTF_16LE;
+	}
+	return null;
+    }
+
+    private static byte[] readPrefix(File file, int length) throws IOException {
+	byte[] bytes = new byte[length];
+	RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+	try {
+	    randomAccessFile.readFully(bytes);
+	} finally {
+	    randomAccessFile.close();
+	}
+	return bytes;
+    }
+
+    public static class FileTooLargeException extends IOException {
+
+	private static final long serialVersionUID = -2715096511466402043L;
+
+	public FileTooLargeException(String message) {
+	    super(message);
+	}
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.luismesalas.storm.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One stats file per input file, under the folder of its language with the same relative path as in the input folder.
+ *
+ * Files are written as they come and nothing is buffered, stats already up to date are not written again.
+ */
+public class FileStatsStore extends StatsStore {
+
+    private static final Logger logger = Logger.getLogger(FileStatsStore.class.getName());
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int _numLanguages;
+    private final int _topK;
+    private long _files;
+
+    public FileStatsStore(int numLanguages, int topK) {
+	_numLanguages = numLanguages;
+	_topK = topK;
+    }
+
+    @Override
+    public void write(StatsWriterPool.StatsFile statsFile) throws IOException {
+	String fileOutPath = statsFile.getStatsPath();
+	File fileOut = new File(fileOutPath);
+
+	if (GeneralUtils.isStatsUpToDate(fileOut, statsFile.getFilepath())) {
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Stats already written to file: " + fileOutPath);
+	    }
+	    return;
+	}
+
+	if (!fileOut.getParentFile().exists()) {
+	    fileOut.getParentFile().mkdirs();
+	}
+
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("Writing to file: " + fileOutPath);
+	}
+	Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileOut), StandardCharsets.UTF_8),
+		WRITE_BUFFER_SIZE);
+	try {
+	    StatsFormatter.write(writer, statsFile.getLanguages(), statsFile.getTokensFrequency(), _numLanguages, _topK);
+	} finally {
+	    writer.close();
+	}
+	_files++;
+    }
+
+    @Override
+    public boolean isFlushDue() {
+	return true;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+	Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	counters.put("files", _files);
+	return counters;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
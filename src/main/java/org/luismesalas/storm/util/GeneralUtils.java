@@ -6,14 +6,45 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public final class GeneralUtils {
 
+    private static final Logger logger = Logger.getLogger(GeneralUtils.class.getName());
+
+    public static final String CONTENT_INLINE = "inline";
+    public static final String CONTENT_BY_REFERENCE = "reference";
+
+    public static final String BATCH_STREAM = "batch";
+    public static final String CORPUS_STREAM = "corpus";
+    public static final String CACHED_STREAM = "cached";
+
+    public static final String PROCESSED_FOLDER = "processed";
+    public static final String FAILED_FOLDER = "failed";
+    public static final String CORPUS_FOLDER = "corpus";
+    public static final String SEGMENTS_FOLDER = "segments";
+    public static final String STATS_SUFFIX = "_stats.txt";
+
     public static void getFilesRecursively(File inputDir, List<File> result) {
 	getFilesRecursively(inputDir, null, null, result);
     }
@@ -24,6 +55,10 @@ public final class GeneralUtils {
 
     public static void getFilesRecursively(File inputDir, String extension, String folderFilter, List<File> result) {
 	File[] files = inputDir.listFiles();
+	// Folders that can't be read, or are removed while listing, have nothing to add
+	if (files == null) {
+	    return;
+	}
 	for (File file : files) {
 	    if (file.isDirectory()) {
 		getFilesRecursively(file, extension, folderFilter, result);
@@ -34,6 +69,19 @@ public final class GeneralUtils {
 	}
     }
 
+    /**
+     * Lists the files under a folder in parallel, handing them to the sink as they are found.
+     *
+     * Every folder is listed by its own fork-join task with a one level walkFileTree, which reads the attributes of each entry once and
+     * forks a task for every subfolder. The sink is called from the pool threads, in no particular order. Folders that can't be read are
+     * skipped.
+     *
+     * @return the scan, done once every folder has been listed
+     */
+    public static ForkJoinTask<Void> scanFiles(ForkJoinPool pool, Path folder, Consumer<Path> sink) {
+	return pool.submit(new ScanTask(folder, sink));
+    }
+
     public static void copyFile(File src, File dest) throws IOException {
 	InputStream in = new FileInputStream(src);
 
@@ -65,6 +113,54 @@ public final class GeneralUtils {
 	return outputPath + File.separator + currentFilePath.replace(inputPath, "");
     }
 
+    /**
+     * Looks for the stats of an input file under every language folder of the output path.
+     *
+     * @return the stats file, or null if the input file has not been processed yet
+     */
+    public static File findStatsFile(String inputPath, String outputPath, String currentFilePath) {
+	File[] langFolders = new File(outputPath).listFiles();
+	if (langFolders == null) {
+	    return null;
+	}
+	for (File langFolder : langFolders) {
+	    if (!langFolder.isDirectory() || langFolder.getName().equals(PROCESSED_FOLDER) || langFolder.getName().equals(FAILED_FOLDER)
+		    || langFolder.getName().equals(CORPUS_FOLDER) || langFolder.getName().equals(SEGMENTS_FOLDER)) {
+		continue;
+	    }
+	    File statsFile = new File(calculateDeltaPath(inputPath, langFolder.getPath(), currentFilePath) + STATS_SUFFIX);
+	    if (statsFile.exists()) {
+		return statsFile;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Tuples replayed after a restart or a timeout don't need to write again stats that are newer than their input file.
+     */
+    public static boolean isStatsUpToDate(File statsFile, String currentFilePath) {
+	return statsFile.exists() && statsFile.lastModified() >= new File(currentFilePath).lastModified();
+    }
+
+    /**
+     * Syncs a folder, so the entries created in it are durable where the platform allows it.
+     */
+    public static void syncFolder(File folder) {
+	try {
+	    FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+	    try {
+		channel.force(true);
+	    } finally {
+		channel.close();
+	    }
+	} catch (IOException e) {
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Can't sync folder " + folder.getPath() + ": " + e.getMessage());
+	    }
+	}
+    }
+
     public static String readFile(String path) throws IOException {
 	return readFile(path, StandardCharsets.UTF_8);
     }
@@ -74,4 +170,72 @@ public final class GeneralUtils {
 	return new String(encoded, encoding);
     }
 
+    // Same delimiters as the default StringTokenizer
+    public static boolean isTokenDelimiter(char c) {
+	return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    public static String getConfString(@SuppressWarnings("rawtypes") Map conf, String key, String defaultValue) {
+	Object value = conf.get(key);
+	if (value == null || value.toString().trim().isEmpty()) {
+	    return defaultValue;
+	}
+	return value.toString().trim();
+    }
+
+    public static int getConfInt(@SuppressWarnings("rawtypes") Map conf, String key, int defaultValue) {
+	return Integer.parseInt(getConfString(conf, key, String.valueOf(defaultValue)));
+    }
+
+    public static long getConfLong(@SuppressWarnings("rawtypes") Map conf, String key, long defaultValue) {
+	return Long.parseLong(getConfString(conf, key, String.valueOf(defaultValue)));
+    }
+
+    public static double getConfDouble(@SuppressWarnings("rawtypes") Map conf, String key, double defaultValue) {
+	return Double.parseDouble(getConfString(conf, key, String.valueOf(defaultValue)));
+    }
+
+    public static boolean getConfBoolean(@SuppressWarnings("rawtypes") Map conf, String key, boolean defaultValue) {
+	return Boolean.parseBoolean(getConfString(conf, key, String.valueOf(defaultValue)));
+    }
+
+    private static class ScanTask extends RecursiveAction {
+	private static final long serialVersionUID = 5316071563418307185L;
+
+	final Path folder;
+	final Consumer<Path> sink;
+
+	ScanTask(Path folder, Consumer<Path> sink) {
+	    this.folder = folder;
+	    this.sink = sink;
+	}
+
+	@Override
+	protected void compute() {
+	    final List<ScanTask> subfolders = new ArrayList<ScanTask>();
+	    try {
+		Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+		    @Override
+		    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			if (attrs.isDirectory()) {
+			    subfolders.add(new ScanTask(file, sink));
+			} else {
+			    sink.accept(file);
+			}
+			return FileVisitResult.CONTINUE;
+		    }
+
+		    @Override
+		    public FileVisitResult visitFileFailed(Path file, IOException e) {
+			logger.warning("Can't scan " + file + ": " + e.getMessage());
+			return FileVisitResult.CONTINUE;
+		    }
+		});
+	    } catch (IOException e) {
+		logger.warning("Can't scan " + folder + ": " + e.getMessage());
+	    }
+	    invokeAll(subfolders);
+	}
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package org.luismesalas.storm.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Approximate top-K tokens of a stream, with memory bounded by the sketch size and K.
+ *
+ * Counts go to a {@link CountMinSketch}, and the K tokens with the highest estimate are kept in a heap with the smallest one on top. A
+ * token enters the heap when its estimate passes the smallest kept one. Removing counts lowers the estimate of kept tokens, and tokens
+ * whose estimate reaches zero leave the heap.
+ */
+public final class HeavyHitters {
+
+    private static final Comparator<Candidate> BY_ESTIMATE = new Comparator<Candidate>() {
+	@Override
+	public int compare(Candidate o1, Candidate o2) {
+	    if (o1.estimate != o2.estimate) {
+		return o1.estimate < o2.estimate ? -1 : 1;
+	    }
+	    return o2.token.compareTo(o1.token);
+	}
+    };
+
+    private final CountMinSketch _sketch;
+    private final int _topK;
+    private final PriorityQueue<Candidate> _heap;
+    private final Map<String, Candidate> _candidates;
+
+    public HeavyHitters(int topK, int sketchWidth, int sketchDepth) {
+	_sketch = new CountMinSketch(sketchWidth, sketchDepth);
+	_topK = Math.max(1, topK);
+	_heap = new PriorityQueue<Candidate>(_topK + 1, BY_ESTIMATE);
+	_candidates = new HashMap<String, Candidate>();
+    }
+
+    public void add(Map<String, Integer> tokensFrequency) {
+	for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+	    add(entry.getKey(), entry.getValue());
+	}
+    }
+
+    public void remove(Map<String, Integer> tokensFrequency) {
+	for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+	    add(entry.getKey(), -entry.getValue());
+	}
+    }
+
+    public void add(String token, long count) {
+	_sketch.add(token, count);
+	long estimate = _sketch.estimate(token);
+
+	Candidate candidate = _candidates.get(token);
+	if (candidate != null) {
+	    // Heap order changes with the estimate, the entry is placed again
+	    _heap.remove(candidate);
+	    if (estimate <= 0) {
+		_candidates.remove(token);
+		return;
+	    }
+	    candidate.estimate = estimate;
+	    _heap.add(candidate);
+	    return;
+	}
+
+	if (estimate <= 0) {
+	    return;
+	}
+	candidate = new Candidate(token, estimate);
+	if (_heap.size() < _topK) {
+	    _heap.add(candidate);
+	    _candidates.put(token, candidate);
+	} else if (BY_ESTIMATE.compare(candidate, _heap.peek()) > 0) {
+	    _candidates.remove(_heap.poll().token);
+	    _heap.add(candidate);
+	    _candidates.put(token, candidate);
+	}
+    }
+
+    public long estimate(String token) {
+	return _sketch.estimate(token);
+    }
+
+    public long getTotal() {
+	return _sketch.getTotal();
+    }
+
+    /**
+     * @return kept tokens ordered by estimate, highest first
+     */
+    public Candidate[] top() {
+	Candidate[] result = _heap.toArray(new Candidate[_heap.size()]);
+	Arrays.sort(result, BY_ESTIMATE.reversed());
+	return result;
+    }
+
+    public static final class Candidate {
+	final String token;
+	long estimate;
+
+	Candidate(String token, long estimate) {
+	    this.token = token;
+	    this.estimate = estimate;
+	}
+
+	public String getToken() {
+	    return token;
+	}
+
+	public long getEstimate() {
+	    return estimate;
+	}
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.luismesalas.storm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.cybozu.labs.langdetect.DetectorFactory;
+import com.cybozu.labs.langdetect.LangDetectException;
+
+/**
+ * Loads the langdetect profiles once per worker JVM.
+ *
+ * DetectorFactory keeps its profiles in static state and refuses to load the same language twice, so every executor of LangIdentifier
+ * in a worker goes through this registry instead of calling DetectorFactory.loadProfile itself.
+ */
+public final class LanguageProfiles {
+
+    private static final Logger logger = Logger.getLogger(LanguageProfiles.class.getName());
+
+    private static String loadedKey;
+
+    private LanguageProfiles() {
+    }
+
+    /**
+     * @param profilesDir
+     *            langdetect profiles folder
+     * @param languages
+     *            comma separated list of languages to load, or null/empty to load every profile in the folder
+     */
+    public static synchronized void load(String profilesDir, String languages) throws LangDetectException, IOException {
+	String key = profilesDir + "|" + (languages == null ? "" : languages.trim());
+	if (loadedKey != null) {
+	    if (!loadedKey.equals(key)) {
+		logger.warning("Language profiles already loaded from " + loadedKey + ", ignoring " + key);
+	    }
+	    return;
+	}
+
+	try {
+	    if (languages == null || languages.trim().isEmpty()) {
+		DetectorFactory.loadProfile(profilesDir);
+	    } else {
+		List<String> jsonProfiles = new ArrayList<String>();
+		for (String language : languages.split(",")) {
+		    File profile = new File(profilesDir, language.trim());
+		    if (!profile.isFile()) {
+			throw new IOException("Language profile not found: " + profile.getAbsolutePath());
+		    }
+		    jsonProfiles.add(GeneralUtils.readFile(profile.getAbsolutePath(), StandardCharsets.UTF_8));
+		}
+		DetectorFactory.loadProfile(jsonProfiles);
+	    }
+	} catch (LangDetectException | IOException e) {
+	    // Don't leave a partial set of profiles behind, the next executor will try again
+	    DetectorFactory.clear();
+	    throw e;
+	}
+
+	loadedKey = key;
+	logger.info("Language profiles loaded: " + DetectorFactory.getLangList());
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.luismesalas.storm.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Loads the tokenizer strategy of every language once per worker JVM.
+ *
+ * The excluded chars are compiled when the registry is created. The stopwords of a language are read from {@code <language>.txt} in
+ * {@code stopwords_folder}, one per line, the first time a document of that language is tokenized. Languages without a stopword file,
+ * or every language when no folder is set, keep all their tokens. {@code bigram_languages} are the comma separated languages segmented
+ * into character bigrams.
+ */
+public final class LanguageTokenizers {
+
+    private static final Logger logger = Logger.getLogger(LanguageTokenizers.class.getName());
+
+    private static final String DEFAULT_LANGUAGE = "";
+
+    private static LanguageTokenizers instance;
+
+    private final TokenTrimmer _trimmer;
+    private final File _stopwordsFolder;
+    private final Set<String> _bigramLanguages;
+    private final Map<String, TokenizerStrategy> _strategies = new ConcurrentHashMap<String, TokenizerStrategy>();
+
+    LanguageTokenizers(TokenTrimmer trimmer, File stopwordsFolder, Set<String> bigramLanguages) {
+	_trimmer = trimmer;
+	_stopwordsFolder = stopwordsFolder;
+	_bigramLanguages = bigramLanguages;
+    }
+
+    /**
+     * @return the registry of this worker, created by the first executor that asks for it
+     */
+    public static synchronized LanguageTokenizers getInstance(@SuppressWarnings("rawtypes") Map conf) throws IOException {
+	if (instance == null) {
+	    Set<String> bigramLanguages = new HashSet<String>();
+	    for (String language : GeneralUtils.getConfString(conf, "bigram_languages", "zh-cn,zh-tw,ja,ko,th").split(",")) {
+		if (!language.trim().isEmpty()) {
+		    bigramLanguages.add(language.trim());
+		}
+	    }
+	    String stopwordsFolder = GeneralUtils.getConfString(conf, "stopwords_folder", null);
+	    instance = new LanguageTokenizers(TokenTrimmer.compile(readLines(new File(conf.get("nontoken_file").toString()))),
+		    stopwordsFolder == null ? null : new File(stopwordsFolder), bigramLanguages);
+	}
+	return instance;
+    }
+
+    public TokenTrimmer getTrimmer() {
+	return _trimmer;
+    }
+
+    /**
+     * @param language
+     *            top language of the document, or null if it has none
+     */
+    public TokenizerStrategy forLanguage(String language) {
+	String key = language == null ? DEFAULT_LANGUAGE : language;
+	TokenizerStrategy strategy = _strategies.get(key);
+	if (strategy == null) {
+	    // Two executors may load the same language at once, either copy is as good
+	    strategy = new TokenizerStrategy(key, _bigramLanguages.contains(key), loadStopwords(key));
+	    _strategies.put(key, strategy);
+	}
+	return strategy;
+    }
+
+    private StopwordSet loadStopwords(String language) {
+	if (_stopwordsFolder == null || language.isEmpty()) {
+	    return StopwordSet.EMPTY;
+	}
+	File file = new File(_stopwordsFolder, language + ".txt");
+	if (!file.isFile()) {
+	    return StopwordSet.EMPTY;
+	}
+	try {
+	    StopwordSet stopwords = StopwordSet.compile(readLines(file));
+	    logger.info(stopwords.size() + " stopwords loaded for language " + language);
+	    return stopwords;
+	} catch (IOException e) {
+	    logger.warning("Can't load stopwords " + file.getAbsolutePath() + ": " + e.getMessage());
+	    return StopwordSet.EMPTY;
+	}
+    }
+
+    // Entries are trimmed and lowercased like the tokens they are compared with
+    private static Set<String> readLines(File file) throws IOException {
+	Set<String> lines = new HashSet<String>();
+	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		lines.add(line.trim().toLowerCase());
+	    }
+	} finally {
+	    reader.close();
+	}
+	return lines;
+    }
+
+}
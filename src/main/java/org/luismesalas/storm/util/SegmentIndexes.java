@@ -0,0 +1,106 @@
+package org.luismesalas.storm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads the sidecar indexes of the segments written by {@link SegmentStatsStore}.
+ *
+ * Every scan only reads the whole lines added to each index since the previous one, the store may be writing the last line. Only the
+ * read position of every index is kept, what is done with the records is up to the visitor.
+ */
+class SegmentIndexes {
+
+    private static final Logger logger = Logger.getLogger(SegmentIndexes.class.getName());
+
+    interface Visitor {
+	void record(String language, File segment, String filepath, long blockOffset, int recordOffset, int recordLength);
+    }
+
+    private final File _folder;
+    private final String _language;
+    private final Map<File, Long> _loadedBytes = new HashMap<File, Long>();
+
+    /**
+     * @param language
+     *            language to read, or null to read all of them
+     */
+    SegmentIndexes(String outputPath, String language) {
+	_folder = new File(outputPath, GeneralUtils.SEGMENTS_FOLDER);
+	_language = language;
+    }
+
+    /**
+     * Visits the records indexed since the last scan, an output folder without segments has no records yet.
+     */
+    void scan(Visitor visitor) throws IOException {
+	File[] languageFolders = _folder.listFiles();
+	if (languageFolders == null) {
+	    return;
+	}
+	Arrays.sort(languageFolders);
+	for (File languageFolder : languageFolders) {
+	    if (!languageFolder.isDirectory() || (_language != null && !_language.equals(languageFolder.getName()))) {
+		continue;
+	    }
+	    File[] indexes = languageFolder.listFiles();
+	    if (indexes == null) {
+		continue;
+	    }
+	    // The segments of a store sort by creation time, so a file it processed again is visited last
+	    Arrays.sort(indexes);
+	    for (File index : indexes) {
+		if (index.getName().endsWith(SegmentStatsStore.SEGMENT_SUFFIX + SegmentStatsStore.INDEX_SUFFIX)) {
+		    scanIndex(languageFolder.getName(), index, visitor);
+		}
+	    }
+	}
+    }
+
+    // Every line is path, block offset, record offset and record length, the path is taken from the right so it can hold tabs
+    private void scanIndex(String language, File index, Visitor visitor) throws IOException {
+	Long loaded = _loadedBytes.get(index);
+	long offset = loaded == null ? 0 : loaded;
+	byte[] bytes;
+	RandomAccessFile in = new RandomAccessFile(index, "r");
+	try {
+	    if (in.length() <= offset) {
+		return;
+	    }
+	    bytes = new byte[(int) (in.length() - offset)];
+	    in.seek(offset);
+	    in.readFully(bytes);
+	} finally {
+	    in.close();
+	}
+	int end = bytes.length;
+	while (end > 0 && bytes[end - 1] != '\n') {
+	    end--;
+	}
+	if (end == 0) {
+	    return;
+	}
+	_loadedBytes.put(index, offset + end);
+
+	File segment = new File(index.getParentFile(), index.getName().substring(0,
+		index.getName().length() - SegmentStatsStore.INDEX_SUFFIX.length()));
+	for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+	    int lengthTab = line.lastIndexOf('\t');
+	    int recordTab = line.lastIndexOf('\t', lengthTab - 1);
+	    int blockTab = line.lastIndexOf('\t', recordTab - 1);
+	    if (blockTab <= 0) {
+		logger.warning("Skipping bad index line in " + index.getPath() + ": " + line);
+		continue;
+	    }
+	    visitor.record(language, segment, line.substring(0, blockTab), Long.parseLong(line.substring(blockTab + 1, recordTab)),
+		    Integer.parseInt(line.substring(recordTab + 1, lengthTab)), Integer.parseInt(line.substring(lengthTab + 1)));
+	}
+    }
+
+}
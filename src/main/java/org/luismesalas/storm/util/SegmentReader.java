@@ -0,0 +1,152 @@
+package org.luismesalas.storm.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Looks up the stats of input files in the segments written by {@link SegmentStatsStore}.
+ *
+ * The indexes of every segment are loaded on creation, reading a record only decompresses the block holding it. Run on its own it
+ * prints the stats of the given input files, or lists the indexed files with their language when none is given.
+ */
+public class SegmentReader {
+
+    private final Map<String, Location> _locations = new HashMap<String, Location>();
+
+    /**
+     * @param outputPath
+     *            output folder of the topology
+     * @param language
+     *            language to load, or null to load all of them
+     */
+    public SegmentReader(String outputPath, String language) throws IOException {
+	new SegmentIndexes(outputPath, language).scan(new SegmentIndexes.Visitor() {
+	    @Override
+	    public void record(String folder, File segment, String filepath, long blockOffset, int recordOffset, int recordLength) {
+		_locations.put(filepath, new Location(folder, segment, blockOffset, recordOffset, recordLength));
+	    }
+	});
+    }
+
+    /**
+     * @return input files with stats, by path
+     */
+    public Set<String> getFilepaths() {
+	return _locations.keySet();
+    }
+
+    /**
+     * @return language folder of the stats of an input file, or null if it has none
+     */
+    public String getLanguage(String filepath) {
+	Location location = _locations.get(filepath);
+	return location == null ? null : location.language;
+    }
+
+    /**
+     * @return stats record of an input file, or null if it has none
+     */
+    public String read(String filepath) throws IOException {
+	Location location = _locations.get(filepath);
+	if (location == null) {
+	    return null;
+	}
+	FileInputStream in = new FileInputStream(location.segment);
+	try {
+	    in.getChannel().position(location.blockOffset);
+	    // Only the block is decompressed, reading stops before the next gzip member
+	    DataInputStream block = new DataInputStream(new GZIPInputStream(in, 64 * 1024));
+	    if (block.skipBytes(location.recordOffset) < location.recordOffset) {
+		throw new EOFException("Record of " + filepath + " is past the end of its block");
+	    }
+	    byte[] record = new byte[location.recordLength];
+	    block.readFully(record);
+	    return new String(record, StandardCharsets.UTF_8);
+	} finally {
+	    in.close();
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+
+	ArgumentParser argParser = createArgParser();
+	Namespace parsedArguments;
+	try {
+	    parsedArguments = argParser.parseArgs(args);
+	} catch (ArgumentParserException e) {
+	    argParser.handleError(e);
+	    System.exit(1);
+	    return;
+	}
+
+	if (!new File(parsedArguments.getString("output"), GeneralUtils.SEGMENTS_FOLDER).isDirectory()) {
+	    throw new IOException("No segments in " + parsedArguments.getString("output"));
+	}
+	SegmentReader segmentReader = new SegmentReader(parsedArguments.getString("output"), parsedArguments.getString("language"));
+	List<String> filepaths = parsedArguments.getList("filepath");
+	if (filepaths == null || filepaths.isEmpty()) {
+	    for (String filepath : new TreeMap<String, Location>(segmentReader._locations).keySet()) {
+		System.out.println(segmentReader.getLanguage(filepath) + "\t" + filepath);
+	    }
+	    return;
+	}
+
+	int missing = 0;
+	for (String filepath : filepaths) {
+	    String record = segmentReader.read(filepath);
+	    if (record == null) {
+		System.err.println("No stats for " + filepath);
+		missing++;
+	    } else {
+		System.out.print(record);
+	    }
+	}
+	if (missing > 0) {
+	    System.exit(2);
+	}
+    }
+
+    private static ArgumentParser createArgParser() {
+
+	ArgumentParser argParser = ArgumentParsers.newArgumentParser("SegmentReader").description(
+		"Prints the stats of input files from the segments of an output folder, or lists the files with stats.");
+
+	argParser.addArgument("-o", "--output").required(true).help("Output folder of the topology.\n");
+	argParser.addArgument("-l", "--language").help("Only load the segments of this language.\n");
+	argParser.addArgument("filepath").nargs("*").help("Input file paths, as they were in the input folder.\n");
+
+	return argParser;
+    }
+
+    private static class Location {
+	final String language;
+	final File segment;
+	final long blockOffset;
+	final int recordOffset;
+	final int recordLength;
+
+	Location(String language, File segment, long blockOffset, int recordOffset, int recordLength) {
+	    this.language = language;
+	    this.segment = segment;
+	    this.blockOffset = blockOffset;
+	    this.recordOffset = recordOffset;
+	    this.recordLength = recordLength;
+	}
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.luismesalas.storm.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stats appended to rolling gzip segments, one set of segments per language, instead of one file per input file.
+ *
+ * Records are gathered in blocks of {@code segment_block_kb} and every block is written as a gzip member of its own, so a segment can be
+ * read whole with any gzip tool and a record can be read by decompressing only its block. Next to every segment a sidecar index has a
+ * line per record with its input file path, the offset of its block in the segment and its offset and length in the block, tab
+ * separated. Segments are closed once they reach {@code segment_max_mb}.
+ *
+ * Segments live in {@code <output>/segments/<language>/}, named after the store so several stores can share the folder. Flushing writes
+ * the open blocks, syncs the segments and only then adds their records to the index, so an indexed record is always in its segment. An
+ * input file processed twice has two records, and {@link SegmentReader} keeps the last one it reads.
+ */
+public class SegmentStatsStore extends StatsStore {
+
+    private static final Logger logger = Logger.getLogger(SegmentStatsStore.class.getName());
+
+    public static final String SEGMENT_SUFFIX = ".seg.gz";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private final File _folder;
+    private final String _name;
+    private final int _numLanguages;
+    private final int _topK;
+    private final int _blockBytes;
+    private final long _maxSegmentBytes;
+    private final int _flushRecords;
+    private final Map<String, Segment> _segments = new TreeMap<String, Segment>();
+
+    private int _unflushed;
+    private long _segmentCount;
+    private long _blocks;
+    private long _records;
+    private long _bytesIn;
+    private long _bytesOut;
+
+    public SegmentStatsStore(String outputPath, String name, int numLanguages, int topK, int blockBytes, long maxSegmentBytes,
+	    int flushRecords) {
+	_folder = new File(outputPath, GeneralUtils.SEGMENTS_FOLDER);
+	_name = name;
+	_numLanguages = numLanguages;
+	_topK = topK;
+	_blockBytes = Math.max(1, blockBytes);
+	_maxSegmentBytes = Math.max(1, maxSegmentBytes);
+	_flushRecords = Math.max(1, flushRecords);
+    }
+
+    @Override
+    public void write(StatsWriterPool.StatsFile statsFile) throws IOException {
+	Segment segment = _segments.get(statsFile.getLanguage());
+	if (segment == null) {
+	    segment = new Segment(new File(_folder, statsFile.getLanguage()));
+	    _segments.put(statsFile.getLanguage(), segment);
+	}
+	if (segment.out == null) {
+	    segment.open(_name + "-" + System.currentTimeMillis() + "-" + segment.sequence++);
+	    _segmentCount++;
+	}
+
+	int recordOffset = segment.block.size();
+	Writer writer = new OutputStreamWriter(segment.block, StandardCharsets.UTF_8);
+	writer.write("Stats of ");
+	writer.write(statsFile.getFilepath());
+	writer.write("\n\n");
+	StatsFormatter.write(writer, statsFile.getLanguages(), statsFile.getTokensFrequency(), _numLanguages, _topK);
+	writer.write('\n');
+	writer.flush();
+	segment.blockIndex.append(statsFile.getFilepath()).append('\t').append(segment.size).append('\t').append(recordOffset).append('\t')
+		.append(segment.block.size() - recordOffset).append('\n');
+	_records++;
+	_unflushed++;
+
+	if (segment.block.size() >= _blockBytes) {
+	    try {
+		writeBlock(segment);
+		if (segment.size >= _maxSegmentBytes) {
+		    syncSegment(segment);
+		    segment.close();
+		}
+	    } catch (IOException e) {
+		segment.discard();
+		throw e;
+	    }
+	}
+    }
+
+    @Override
+    public boolean isFlushDue() {
+	return _unflushed >= _flushRecords;
+    }
+
+    /**
+     * A segment that fails is closed with the records not yet indexed left out, the next records go to a new segment.
+     */
+    @Override
+    public void flush() throws IOException {
+	IOException failure = null;
+	for (Segment segment : _segments.values()) {
+	    if (segment.out != null) {
+		try {
+		    writeBlock(segment);
+		    syncSegment(segment);
+		} catch (IOException e) {
+		    segment.discard();
+		    failure = e;
+		}
+	    }
+	}
+	_unflushed = 0;
+	if (failure != null) {
+	    throw failure;
+	}
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+	Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	counters.put("segments", _segmentCount);
+	counters.put("blocks", _blocks);
+	counters.put("records", _records);
+	counters.put("bytes_in", _bytesIn);
+	counters.put("bytes_out", _bytesOut);
+	return counters;
+    }
+
+    @Override
+    public void close() throws IOException {
+	flush();
+	for (Segment segment : _segments.values()) {
+	    segment.close();
+	}
+    }
+
+    private void writeBlock(Segment segment) throws IOException {
+	if (segment.block.size() == 0) {
+	    return;
+	}
+	ByteArrayOutputStream compressed = new ByteArrayOutputStream(segment.block.size() / 4 + 64);
+	GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+	segment.block.writeTo(gzip);
+	gzip.finish();
+	compressed.writeTo(segment.out);
+
+	_blocks++;
+	_bytesIn += segment.block.size();
+	_bytesOut += compressed.size();
+	segment.size += compressed.size();
+	segment.unsyncedIndex.append(segment.blockIndex);
+	segment.blockIndex.setLength(0);
+	segment.block.reset();
+    }
+
+    // Records are only indexed once their block is synced, and new files once their folder is
+    private void syncSegment(Segment segment) throws IOException {
+	segment.out.getFD().sync();
+	if (segment.unsyncedIndex.length() > 0) {
+	    segment.index.write(segment.unsyncedIndex.toString().getBytes(StandardCharsets.UTF_8));
+	    segment.index.getFD().sync();
+	    segment.unsyncedIndex.setLength(0);
+	}
+	if (segment.created) {
+	    GeneralUtils.syncFolder(segment.folder);
+	    GeneralUtils.syncFolder(_folder);
+	    segment.created = false;
+	}
+    }
+
+    private static class Segment {
+	final File folder;
+	final ByteArrayOutputStream block = new ByteArrayOutputStream();
+	final StringBuilder blockIndex = new StringBuilder();
+	final StringBuilder unsyncedIndex = new StringBuilder();
+	int sequence;
+	FileOutputStream out;
+	FileOutputStream index;
+	long size;
+	boolean created;
+
+	Segment(File folder) {
+	    this.folder = folder;
+	}
+
+	void open(String name) throws IOException {
+	    if (!folder.exists() && !folder.mkdirs() && !folder.isDirectory()) {
+		throw new IOException("Can't create folder " + folder.getPath());
+	    }
+	    File segmentFile = new File(folder, name + SEGMENT_SUFFIX);
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Opening segment: " + segmentFile.getPath());
+	    }
+	    out = new FileOutputStream(segmentFile);
+	    index = new FileOutputStream(new File(folder, name + SEGMENT_SUFFIX + INDEX_SUFFIX));
+	    size = 0;
+	    created = true;
+	}
+
+	void close() {
+	    try {
+		if (out != null) {
+		    out.close();
+		}
+		if (index != null) {
+		    index.close();
+		}
+	    } catch (IOException e) {
+		logger.warning(e.getMessage());
+	    }
+	    out = null;
+	    index = null;
+	}
+
+	void discard() {
+	    close();
+	    block.reset();
+	    blockIndex.setLength(0);
+	    unsyncedIndex.setLength(0);
+	}
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.luismesalas.storm.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.luismesalas.storm.model.LanguageSerializable;
+
+/**
+ * Writes the language and token frequency summary of a document.
+ *
+ * Lines are streamed straight to the writer, tokens are sorted once by count and then by token, both descending.
+ */
+public final class StatsFormatter {
+
+    private static final Comparator<TokenCount> BY_FREQUENCY = new Comparator<TokenCount>() {
+	@Override
+	public int compare(TokenCount o1, TokenCount o2) {
+	    if (o1.count != o2.count) {
+		return o1.count > o2.count ? -1 : 1;
+	    }
+	    return o2.token.compareTo(o1.token);
+	}
+    };
+
+    private StatsFormatter() {
+    }
+
+    public static void write(Writer out, List<LanguageSerializable> languages, Map<String, Integer> tokensFrequency, int numLanguages,
+	    int topK) throws IOException {
+	writeLanguageSummary(out, languages, numLanguages);
+	out.write("\n\n");
+	writeOrderedTokensFrequencySummary(out, tokensFrequency, topK);
+    }
+
+    public static void writeLanguageSummary(Writer out, List<LanguageSerializable> languages, int numLanguages) throws IOException {
+	out.write("Language probability stats\n\n");
+	for (int i = 0; (i < languages.size() && i < numLanguages); i++) {
+	    out.write(languages.get(i).getLang());
+	    out.write(": ");
+	    out.write(String.valueOf(languages.get(i).getProb()));
+	    out.write('\n');
+	}
+    }
+
+    /**
+     * @param topK
+     *            number of tokens to write, 0 or less writes all of them
+     */
+    public static void writeOrderedTokensFrequencySummary(Writer out, Map<String, Integer> tokensFrequency, int topK) throws IOException {
+	out.write("Tokens count stats\n\n");
+	for (TokenCount tokenCount : sortByFrequency(tokensFrequency, topK)) {
+	    out.write(tokenCount.token);
+	    out.write(": ");
+	    out.write(Integer.toString(tokenCount.count));
+	    out.write('\n');
+	}
+    }
+
+    public static TokenCount[] sortByFrequency(Map<String, Integer> tokensFrequency, int topK) {
+	if (topK > 0 && topK < tokensFrequency.size()) {
+	    // Bounded heap with the smallest kept entry on top
+	    PriorityQueue<TokenCount> heap = new PriorityQueue<TokenCount>(topK + 1, BY_FREQUENCY.reversed());
+	    for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+		TokenCount candidate = new TokenCount(entry.getKey(), entry.getValue());
+		if (heap.size() < topK) {
+		    heap.add(candidate);
+		} else if (BY_FREQUENCY.compare(candidate, heap.peek()) < 0) {
+		    heap.poll();
+		    heap.add(candidate);
+		}
+	    }
+	    TokenCount[] result = heap.toArray(new TokenCount[heap.size()]);
+	    Arrays.sort(result, BY_FREQUENCY);
+	    return result;
+	}
+
+	TokenCount[] result = new TokenCount[tokensFrequency.size()];
+	int i = 0;
+	for (Map.Entry<String, Integer> entry : tokensFrequency.entrySet()) {
+	    result[i++] = new TokenCount(entry.getKey(), entry.getValue());
+	}
+	Arrays.sort(result, BY_FREQUENCY);
+	return result;
+    }
+
+    public static final class TokenCount {
+	final String token;
+	final int count;
+
+	TokenCount(String token, int count) {
+	    this.token = token;
+	    this.count = count;
+	}
+
+	public String getToken() {
+	    return token;
+	}
+
+	public int getCount() {
+	    return count;
+	}
+    }
+
+}
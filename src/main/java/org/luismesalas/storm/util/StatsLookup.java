@@ -0,0 +1,133 @@
+package org.luismesalas.storm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Tells whether an input file already has stats in the output folder, whichever {@link StatsStore} wrote them.
+ *
+ * With the {@code files} store every lookup looks for the stats file under the language folders, and stats older than the input file
+ * don't count, so a file delivered again with new content is processed again.
+ *
+ * With the {@code segments} store only a 64-bit hash of the path of every indexed file is kept, about 16 bytes per file, so a million
+ * processed files take some 16 MB of the spout heap. The indexes are read on creation, and on a miss the lines added since are read at
+ * most every {@code segment_lookup_refresh_millis}, so a record indexed since the last read may be missed and its file processed again.
+ * Segment records have no time, so a file delivered again under the same name counts as processed and keeps its old stats.
+ *
+ * Lookups are used by one thread at a time.
+ */
+public class StatsLookup {
+
+    private static final Logger logger = Logger.getLogger(StatsLookup.class.getName());
+
+    private final String _inputPath;
+    private final String _outputPath;
+    private final SegmentIndexes _indexes;
+    private final long _refreshMillis;
+    private final PathHashes _indexed = new PathHashes();
+    private final SegmentIndexes.Visitor _indexer = new SegmentIndexes.Visitor() {
+	@Override
+	public void record(String language, File segment, String filepath, long blockOffset, int recordOffset, int recordLength) {
+	    _indexed.add(DedupCache.hash(filepath));
+	}
+    };
+    private long _lastRefresh;
+
+    StatsLookup(String inputPath, String outputPath, SegmentIndexes indexes, long refreshMillis) {
+	_inputPath = inputPath;
+	_outputPath = outputPath;
+	_indexes = indexes;
+	_refreshMillis = refreshMillis;
+    }
+
+    public static StatsLookup fromConf(@SuppressWarnings("rawtypes") Map conf) throws IOException {
+	String outputPath = conf.get("output").toString();
+	SegmentIndexes indexes = null;
+	if (StatsStore.SEGMENTS.equals(GeneralUtils.getConfString(conf, "output_store", StatsStore.FILES))) {
+	    indexes = new SegmentIndexes(outputPath, null);
+	}
+	StatsLookup lookup = new StatsLookup(conf.get("input").toString(), outputPath, indexes, GeneralUtils.getConfLong(conf,
+		"segment_lookup_refresh_millis", 1000));
+	if (indexes != null) {
+	    lookup.refresh();
+	}
+	return lookup;
+    }
+
+    /**
+     * @return true if the input file has been processed already
+     */
+    public boolean hasStats(String filepath) {
+	if (_indexes == null) {
+	    File statsFile = GeneralUtils.findStatsFile(_inputPath, _outputPath, filepath);
+	    return statsFile != null && GeneralUtils.isStatsUpToDate(statsFile, filepath);
+	}
+	long hash = DedupCache.hash(filepath);
+	if (_indexed.contains(hash)) {
+	    return true;
+	}
+	if (System.currentTimeMillis() - _lastRefresh < _refreshMillis) {
+	    return false;
+	}
+	try {
+	    refresh();
+	} catch (IOException e) {
+	    logger.warning("Can't read the segment indexes: " + e.getMessage());
+	}
+	return _indexed.contains(hash);
+    }
+
+    private void refresh() throws IOException {
+	_lastRefresh = System.currentTimeMillis();
+	_indexes.scan(_indexer);
+    }
+
+    // Open addressing set of path hashes, 0 marks an empty slot so it stands for itself with another value
+    private static class PathHashes {
+	private long[] table = new long[1024];
+	private int size;
+
+	boolean contains(long hash) {
+	    long key = hash == 0 ? 1 : hash;
+	    int mask = table.length - 1;
+	    for (int slot = (int) (key ^ (key >>> 32)) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+		if (table[slot] == key) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	void add(long hash) {
+	    long key = hash == 0 ? 1 : hash;
+	    if (insert(table, key)) {
+		size++;
+		if (size * 2 > table.length) {
+		    long[] grown = new long[table.length * 2];
+		    for (long old : table) {
+			if (old != 0) {
+			    insert(grown, old);
+			}
+		    }
+		    table = grown;
+		}
+	    }
+	}
+
+	private static boolean insert(long[] table, long key) {
+	    int mask = table.length - 1;
+	    int slot = (int) (key ^ (key >>> 32)) & mask;
+	    while (table[slot] != 0) {
+		if (table[slot] == key) {
+		    return false;
+		}
+		slot = (slot + 1) & mask;
+	    }
+	    table[slot] = key;
+	    return true;
+	}
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.luismesalas.storm.util;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where the stats of every input file end up.
+ *
+ * The {@code files} store writes one stats file per input file under the folder of its language, the {@code segments} store appends
+ * them to compressed segments per language, see {@link SegmentStatsStore}. Stores are used from a single thread.
+ */
+public abstract class StatsStore {
+
+    public static final String FILES = "files";
+    public static final String SEGMENTS = "segments";
+
+    /**
+     * @param name
+     *            unique name of the store among the ones sharing the output folder
+     */
+    public static StatsStore fromConf(@SuppressWarnings("rawtypes") Map conf, String name, int numLanguages, int topK) {
+	String outputPath = conf.get("output").toString();
+	String store = GeneralUtils.getConfString(conf, "output_store", FILES);
+	if (SEGMENTS.equals(store)) {
+	    return new SegmentStatsStore(outputPath, name, numLanguages, topK, GeneralUtils.getConfInt(conf, "segment_block_kb", 64) * 1024,
+		    GeneralUtils.getConfLong(conf, "segment_max_mb", 64) * 1024 * 1024, GeneralUtils.getConfInt(conf,
+			    "segment_flush_records", 256));
+	}
+	if (!FILES.equals(store)) {
+	    throw new IllegalArgumentException("Unknown output store: " + store);
+	}
+	return new FileStatsStore(numLanguages, topK);
+    }
+
+    public abstract void write(StatsWriterPool.StatsFile statsFile) throws IOException;
+
+    /**
+     * @return true if the stats written since the last flush should be flushed before acking them
+     */
+    public abstract boolean isFlushDue();
+
+    /**
+     * Makes every stats written so far durable.
+     */
+    public abstract void flush() throws IOException;
+
+    public abstract Map<String, Long> getCounters();
+
+    public abstract void close() throws IOException;
+
+}
@@ -0,0 +1,387 @@
+package org.luismesalas.storm.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.luismesalas.storm.model.LanguageSerializable;
+
+/**
+ * Pool of threads that write stats files in groups and report them once they are durable.
+ *
+ * Every submitted job carries a ticket and the stats files of one tuple. Writer threads write the files as they take the jobs, and keep
+ * them open until their group is committed, either on {@link #commit()} or once it has {@code groupFiles} files. Committing syncs the
+ * files and the folders they were created in, and then hands the tickets of the group to {@link #pollDurable()}. Tickets of jobs that
+ * couldn't be written are handed to {@link #pollFailed()}. Folders are only created the first time a file is written to them. The caller
+ * can wait for a commit with {@link #awaitCommit(long, long, TimeUnit)}.
+ *
+ * @param <T>
+ *            ticket type, the caller acks or fails it from its own thread
+ */
+public class StatsWriterPool<T> {
+
+    private static final Logger logger = Logger.getLogger(StatsWriterPool.class.getName());
+
+    private static final long POLL_MILLIS = 50;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final int _groupFiles;
+    private final int _numLanguages;
+    private final int _topK;
+    private final BlockingQueue<Job<T>> _queue;
+    private final Queue<T> _durable = new ConcurrentLinkedQueue<T>();
+    private final Queue<T> _failed = new ConcurrentLinkedQueue<T>();
+    private final Set<String> _folders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Thread[] _threads;
+    // Last commit request every writer thread is done with
+    private final AtomicLongArray _handled;
+    private final Object _commitLock = new Object();
+
+    private final AtomicLong _groups = new AtomicLong();
+    private final AtomicLong _files = new AtomicLong();
+    private volatile long _commitRequests;
+    private volatile boolean _running = true;
+
+    public StatsWriterPool(int threads, int queueSize, int groupFiles, int numLanguages, int topK) {
+	_groupFiles = Math.max(1, groupFiles);
+	_numLanguages = numLanguages;
+	_topK = topK;
+	_queue = new ArrayBlockingQueue<Job<T>>(Math.max(1, queueSize));
+	_threads = new Thread[Math.max(1, threads)];
+	_handled = new AtomicLongArray(_threads.length);
+    }
+
+    public void start() {
+	for (int i = 0; i < _threads.length; i++) {
+	    final int index = i;
+	    _threads[i] = new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    writeLoop(index);
+		}
+	    }, "stats-writer-" + i);
+	    _threads[i].setDaemon(true);
+	    _threads[i].start();
+	}
+    }
+
+    /**
+     * Commits the groups of every writer thread and waits for them to finish.
+     */
+    public void stop() {
+	_running = false;
+	for (Thread thread : _threads) {
+	    try {
+		thread.join(TimeUnit.SECONDS.toMillis(10));
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Queues the files of a ticket, waiting up to the timeout if the queue is full.
+     *
+     * @return false if the queue is still full
+     */
+    public boolean offer(T ticket, List<StatsFile> files, long timeout, TimeUnit unit) throws InterruptedException {
+	return _queue.offer(new Job<T>(ticket, files), timeout, unit);
+    }
+
+    /**
+     * Asks every writer thread to commit its current group. Called from a single thread.
+     *
+     * @return the number of the request, to wait for it
+     */
+    public long commit() {
+	long request = _commitRequests + 1;
+	_commitRequests = request;
+	return request;
+    }
+
+    /**
+     * Waits until every writer thread has committed the group it had when the request was made.
+     *
+     * @return false if some writer thread is still writing or syncing once the timeout is over
+     */
+    public boolean awaitCommit(long request, long timeout, TimeUnit unit) throws InterruptedException {
+	long deadline = System.nanoTime() + unit.toNanos(timeout);
+	synchronized (_commitLock) {
+	    while (!isCommitted(request)) {
+		long left = deadline - System.nanoTime();
+		if (left <= 0) {
+		    return false;
+		}
+		TimeUnit.NANOSECONDS.timedWait(_commitLock, left);
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * @return the next ticket whose files are durable, or null if there is none
+     */
+    public T pollDurable() {
+	return _durable.poll();
+    }
+
+    /**
+     * @return the next ticket whose files could not be written, or null if there is none
+     */
+    public T pollFailed() {
+	return _failed.poll();
+    }
+
+    /**
+     * @return queued jobs, committed groups and synced files since the pool started
+     */
+    public Map<String, Long> getCounters() {
+	Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	counters.put("queued", (long) _queue.size());
+	counters.put("groups", _groups.get());
+	counters.put("files", _files.get());
+	return counters;
+    }
+
+    private boolean isCommitted(long request) {
+	for (int i = 0; i < _handled.length(); i++) {
+	    if (_handled.get(i) < request) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void writeLoop(int index) {
+	List<OpenJob<T>> group = new ArrayList<OpenJob<T>>();
+	int groupFiles = 0;
+	long committed = _commitRequests;
+
+	while (_running || !_queue.isEmpty()) {
+	    Job<T> job;
+	    try {
+		job = _queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		break;
+	    }
+
+	    if (job != null) {
+		OpenJob<T> open = write(job);
+		if (open != null) {
+		    group.add(open);
+		    groupFiles += open.streams.size();
+		}
+	    }
+
+	    long requests = _commitRequests;
+	    if (group.isEmpty()) {
+		// A request with nothing to commit doesn't make the next job commit on its own
+		committed = requests;
+	    } else if (groupFiles >= _groupFiles || requests != committed) {
+		commitGroup(group);
+		group.clear();
+		groupFiles = 0;
+		committed = requests;
+	    }
+	    if (_handled.get(index) != committed) {
+		_handled.set(index, committed);
+		synchronized (_commitLock) {
+		    _commitLock.notifyAll();
+		}
+	    }
+	}
+	commitGroup(group);
+    }
+
+    private OpenJob<T> write(Job<T> job) {
+	OpenJob<T> open = new OpenJob<T>(job.ticket);
+	try {
+	    for (StatsFile statsFile : job.files) {
+		File fileOut = new File(statsFile.statsPath);
+		if (GeneralUtils.isStatsUpToDate(fileOut, statsFile.filepath)) {
+		    if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Stats already written to file: " + statsFile.statsPath);
+		    }
+		    continue;
+		}
+
+		File folder = fileOut.getParentFile();
+		if (_folders.add(folder.getPath())) {
+		    if (!folder.exists() && !folder.mkdirs() && !folder.isDirectory()) {
+			_folders.remove(folder.getPath());
+			throw new IOException("Can't create folder " + folder.getPath());
+		    }
+		    open.newFolders.add(folder);
+		}
+
+		if (logger.isLoggable(Level.FINE)) {
+		    logger.fine("Writing to file: " + statsFile.statsPath);
+		}
+		FileOutputStream stream;
+		try {
+		    stream = new FileOutputStream(fileOut);
+		} catch (FileNotFoundException e) {
+		    // The folder was removed after it was created
+		    if (!folder.mkdirs()) {
+			throw e;
+		    }
+		    open.newFolders.add(folder);
+		    stream = new FileOutputStream(fileOut);
+		}
+		open.streams.add(stream);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+		StatsFormatter.write(writer, statsFile.languages, statsFile.tokensFrequency, _numLanguages, _topK);
+		writer.flush();
+		open.fileFolders.add(fileOut.getParentFile());
+	    }
+	    return open;
+	} catch (IOException e) {
+	    logger.severe("Exception writing stats: " + e.getMessage());
+	    open.close();
+	    _failed.add(job.ticket);
+	    return null;
+	}
+    }
+
+    // Files are synced one by one, the folders holding new files once per group
+    private void commitGroup(List<OpenJob<T>> group) {
+	if (group.isEmpty()) {
+	    return;
+	}
+	Set<File> folders = new HashSet<File>();
+	List<OpenJob<T>> synced = new ArrayList<OpenJob<T>>(group.size());
+	for (OpenJob<T> open : group) {
+	    try {
+		for (FileOutputStream stream : open.streams) {
+		    stream.getFD().sync();
+		}
+		folders.addAll(open.fileFolders);
+		folders.addAll(parents(open.newFolders));
+		synced.add(open);
+		_files.addAndGet(open.streams.size());
+	    } catch (IOException e) {
+		logger.severe("Exception syncing stats: " + e.getMessage());
+		_failed.add(open.ticket);
+	    } finally {
+		open.close();
+	    }
+	}
+
+	for (File folder : folders) {
+	    GeneralUtils.syncFolder(folder);
+	}
+	for (OpenJob<T> open : synced) {
+	    _durable.add(open.ticket);
+	}
+	_groups.incrementAndGet();
+    }
+
+    private static Set<File> parents(List<File> folders) {
+	Set<File> parents = new HashSet<File>();
+	for (File folder : folders) {
+	    if (folder.getParentFile() != null) {
+		parents.add(folder.getParentFile());
+	    }
+	}
+	return parents;
+    }
+
+    /**
+     * Stats of one input file.
+     */
+    public static class StatsFile {
+	final String filepath;
+	final String language;
+	final String statsPath;
+	final List<LanguageSerializable> languages;
+	final Map<String, Integer> tokensFrequency;
+
+	/**
+	 * @param language
+	 *            output folder of the stats, the top language or ambiguous
+	 */
+	public StatsFile(String filepath, String language, String statsPath, List<LanguageSerializable> languages,
+		Map<String, Integer> tokensFrequency) {
+	    this.filepath = filepath;
+	    this.language = language;
+	    this.statsPath = statsPath;
+	    this.languages = languages;
+	    this.tokensFrequency = tokensFrequency;
+	}
+
+	public String getFilepath() {
+	    return filepath;
+	}
+
+	public String getLanguage() {
+	    return language;
+	}
+
+	public String getStatsPath() {
+	    return statsPath;
+	}
+
+	public List<LanguageSerializable> getLanguages() {
+	    return languages;
+	}
+
+	public Map<String, Integer> getTokensFrequency() {
+	    return tokensFrequency;
+	}
+    }
+
+    private static class Job<T> {
+	final T ticket;
+	final List<StatsFile> files;
+
+	Job(T ticket, List<StatsFile> files) {
+	    this.ticket = ticket;
+	    this.files = files;
+	}
+    }
+
+    private static class OpenJob<T> {
+	final T ticket;
+	final List<FileOutputStream> streams = new ArrayList<FileOutputStream>();
+	final List<File> fileFolders = new ArrayList<File>();
+	final List<File> newFolders = new ArrayList<File>();
+
+	OpenJob(T ticket) {
+	    this.ticket = ticket;
+	}
+
+	void close() {
+	    for (FileOutputStream stream : streams) {
+		try {
+		    stream.close();
+		} catch (IOException e) {
+		    logger.warning(e.getMessage());
+		}
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.luismesalas.storm.util;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Immutable set of stopwords looked up straight from a char region.
+ *
+ * Words are kept in an open addressing table with the String hash, so checking a token never allocates and the table is safe to share
+ * between threads once compiled.
+ */
+public final class StopwordSet {
+
+    public static final StopwordSet EMPTY = compile(Collections.<String> emptySet());
+
+    private final String[] words;
+    private final int[] hashes;
+    private final int mask;
+    private final int size;
+
+    private StopwordSet(String[] words, int[] hashes, int size) {
+	this.words = words;
+	this.hashes = hashes;
+	this.mask = words.length - 1;
+	this.size = size;
+    }
+
+    public static StopwordSet compile(Collection<String> stopwords) {
+	int capacity = Integer.highestOneBit(Math.max(4, stopwords.size() * 2 - 1)) << 1;
+	String[] words = new String[capacity];
+	int[] hashes = new int[capacity];
+	int mask = capacity - 1;
+	int size = 0;
+	for (String word : stopwords) {
+	    if (word == null || word.isEmpty()) {
+		continue;
+	    }
+	    int hash = word.hashCode();
+	    int slot = mix(hash) & mask;
+	    while (words[slot] != null && !words[slot].equals(word)) {
+		slot = (slot + 1) & mask;
+	    }
+	    if (words[slot] == null) {
+		words[slot] = word;
+		hashes[slot] = hash;
+		size++;
+	    }
+	}
+	return new StopwordSet(words, hashes, size);
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public boolean contains(CharSequence text, int begin, int end) {
+	if (size == 0) {
+	    return false;
+	}
+	int hash = 0;
+	for (int i = begin; i < end; i++) {
+	    hash = 31 * hash + text.charAt(i);
+	}
+	int slot = mix(hash) & mask;
+	while (words[slot] != null) {
+	    if (hashes[slot] == hash && matches(words[slot], text, begin, end)) {
+		return true;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	return false;
+    }
+
+    private static boolean matches(String word, CharSequence text, int begin, int end) {
+	if (word.length() != end - begin) {
+	    return false;
+	}
+	for (int i = begin; i < end; i++) {
+	    if (word.charAt(i - begin) != text.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static int mix(int hash) {
+	int h = hash * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+}
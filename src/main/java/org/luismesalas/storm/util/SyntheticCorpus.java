@@ -0,0 +1,140 @@
+package org.luismesalas.storm.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic multilingual text.
+ *
+ * Every language has a vocabulary of random words built from its own alphabet, and words are drawn following a Zipf distribution, so
+ * token frequencies look like the ones of natural text. Texts are deterministic for a given seed.
+ */
+public final class SyntheticCorpus {
+
+    public static final String ALL_LANGUAGES = "en+es+de+fr+ru+el+zh+ja";
+
+    private static final Map<String, String> ALPHABETS = new HashMap<String, String>();
+
+    static {
+	String latin = "abcdefghijklmnopqrstuvwxyz";
+	ALPHABETS.put("en", latin);
+	ALPHABETS.put("es", latin + "áéíóúñ");
+	ALPHABETS.put("de", latin + "äöüß");
+	ALPHABETS.put("fr", latin + "àâçéèêëîïôûù");
+	ALPHABETS.put("ru", "абвгдежзийклмнопрстуфхцчшщъыьэюя");
+	ALPHABETS.put("el", "αβγδεζηθικλμνξοπρστυφχψω");
+	ALPHABETS.put("zh", range(0x4E00, 0x4E00 + 2000));
+	ALPHABETS.put("ja", range(0x3041, 0x3094));
+    }
+
+    private static final String[] PUNCTUATION = { ",", ".", ";", ":", "!", "?", "\"", "(", ")" };
+
+    private final Map<String, String[]> _vocabularies = new HashMap<String, String[]>();
+    private final double[] _cumulativeWeights;
+    private final String[] _languages;
+
+    /**
+     * @param languages
+     *            languages joined with '+', from {@link #ALL_LANGUAGES}, so a mix fits in a single command line value
+     * @param vocabularySize
+     *            distinct words per language
+     */
+    public SyntheticCorpus(String languages, int vocabularySize, long seed) {
+	Random random = new Random(seed);
+	_languages = languages.split("\\+");
+	for (String language : _languages) {
+	    String alphabet = ALPHABETS.get(language);
+	    if (alphabet == null) {
+		throw new IllegalArgumentException("Unknown language: " + language);
+	    }
+	    _vocabularies.put(language, vocabulary(alphabet, vocabularySize, random));
+	}
+
+	_cumulativeWeights = new double[vocabularySize];
+	double sum = 0;
+	for (int rank = 0; rank < vocabularySize; rank++) {
+	    sum += 1.0 / (rank + 1);
+	    _cumulativeWeights[rank] = sum;
+	}
+    }
+
+    /**
+     * Text of about {@code length} chars, made of paragraphs that cycle through the languages of the corpus.
+     */
+    public String text(int length, long seed) {
+	Random random = new Random(seed);
+	StringBuilder text = new StringBuilder(length + 64);
+	int language = 0;
+	while (text.length() < length) {
+	    String[] vocabulary = _vocabularies.get(_languages[language]);
+	    int sentences = 3 + random.nextInt(5);
+	    for (int s = 0; s < sentences && text.length() < length; s++) {
+		int words = 5 + random.nextInt(15);
+		for (int w = 0; w < words; w++) {
+		    String word = vocabulary[zipfRank(random)];
+		    text.append(w == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+		    if (random.nextInt(10) == 0) {
+			text.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+		    }
+		    text.append(' ');
+		}
+		text.append(". ");
+	    }
+	    text.append('\n');
+	    language = (language + 1) % _languages.length;
+	}
+	return text.toString();
+    }
+
+    /**
+     * Single words drawn from every language of the corpus, a quarter of them wrapped in punctuation.
+     */
+    public String[] tokens(int count, long seed) {
+	Random random = new Random(seed);
+	String[] tokens = new String[count];
+	for (int i = 0; i < count; i++) {
+	    String[] vocabulary = _vocabularies.get(_languages[i % _languages.length]);
+	    String token = vocabulary[zipfRank(random)];
+	    if (random.nextInt(4) == 0) {
+		token = PUNCTUATION[random.nextInt(PUNCTUATION.length)] + token + PUNCTUATION[random.nextInt(PUNCTUATION.length)];
+	    }
+	    tokens[i] = token;
+	}
+	return tokens;
+    }
+
+    private int zipfRank(Random random) {
+	double target = random.nextDouble() * _cumulativeWeights[_cumulativeWeights.length - 1];
+	int rank = Arrays.binarySearch(_cumulativeWeights, target);
+	return rank >= 0 ? rank : Math.min(-rank - 1, _cumulativeWeights.length - 1);
+    }
+
+    private static String[] vocabulary(String alphabet, int size, Random random) {
+	// Insertion order is the frequency rank
+	Set<String> words = new LinkedHashSet<String>();
+	StringBuilder word = new StringBuilder();
+	while (words.size() < size) {
+	    word.setLength(0);
+	    // Frequent words are the short ones, as in natural languages
+	    int length = 1 + (int) Math.min(14, Math.abs(random.nextGaussian() * 3) + words.size() * 6L / size);
+	    for (int i = 0; i < length; i++) {
+		word.append(alphabet.charAt(random.nextInt(alphabet.length())));
+	    }
+	    words.add(word.toString());
+	}
+	return words.toArray(new String[size]);
+    }
+
+    private static String range(int first, int last) {
+	StringBuilder chars = new StringBuilder(last - first);
+	for (int c = first; c < last; c++) {
+	    chars.append((char) c);
+	}
+	return chars.toString();
+    }
+
+}
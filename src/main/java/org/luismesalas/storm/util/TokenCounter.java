@@ -0,0 +1,132 @@
+package org.luismesalas.storm.util;
+
+import org.luismesalas.storm.model.TokenFrequencyMap;
+
+/**
+ * Open addressing token to count map.
+ *
+ * Tokens are looked up straight from a char region, so a token String is only allocated the first time it is seen and counts are kept as
+ * primitive ints.
+ */
+public final class TokenCounter {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private String[] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int size;
+    private int mask;
+
+    public TokenCounter() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    public TokenCounter(int expectedSize) {
+	int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+	allocate(capacity);
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public void increment(char[] chars, int begin, int end) {
+	merge(chars, null, begin, end, 1);
+    }
+
+    public void increment(String text, int begin, int end) {
+	merge(null, text, begin, end, 1);
+    }
+
+    public void add(String token, int count) {
+	merge(null, token, 0, token.length(), count);
+    }
+
+    public TokenFrequencyMap toHashMap() {
+	TokenFrequencyMap result = new TokenFrequencyMap((int) (size / 0.75f) + 1);
+	for (int i = 0; i < keys.length; i++) {
+	    if (keys[i] != null) {
+		result.put(keys[i], counts[i]);
+	    }
+	}
+	return result;
+    }
+
+    private void merge(char[] chars, String text, int begin, int end, int count) {
+	int hash = 0;
+	for (int i = begin; i < end; i++) {
+	    hash = 31 * hash + (chars != null ? chars[i] : text.charAt(i));
+	}
+
+	int slot = mix(hash) & mask;
+	while (keys[slot] != null) {
+	    if (hashes[slot] == hash && matches(keys[slot], chars, text, begin, end)) {
+		counts[slot] += count;
+		return;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+
+	String key;
+	if (chars != null) {
+	    key = new String(chars, begin, end - begin);
+	} else {
+	    key = (begin == 0 && end == text.length()) ? text : text.substring(begin, end);
+	}
+	keys[slot] = key;
+	hashes[slot] = hash;
+	counts[slot] = count;
+
+	if (++size * 4 > keys.length * 3) {
+	    rehash();
+	}
+    }
+
+    private static boolean matches(String key, char[] chars, String text, int begin, int end) {
+	if (key.length() != end - begin) {
+	    return false;
+	}
+	if (chars != null) {
+	    for (int i = begin; i < end; i++) {
+		if (key.charAt(i - begin) != chars[i]) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+	return key.regionMatches(0, text, begin, end - begin);
+    }
+
+    private void rehash() {
+	String[] oldKeys = keys;
+	int[] oldHashes = hashes;
+	int[] oldCounts = counts;
+	allocate(oldKeys.length << 1);
+
+	for (int i = 0; i < oldKeys.length; i++) {
+	    if (oldKeys[i] != null) {
+		int slot = mix(oldHashes[i]) & mask;
+		while (keys[slot] != null) {
+		    slot = (slot + 1) & mask;
+		}
+		keys[slot] = oldKeys[i];
+		hashes[slot] = oldHashes[i];
+		counts[slot] = oldCounts[i];
+	    }
+	}
+    }
+
+    private void allocate(int capacity) {
+	keys = new String[capacity];
+	hashes = new int[capacity];
+	counts = new int[capacity];
+	mask = capacity - 1;
+    }
+
+    private static int mix(int hash) {
+	int h = hash * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.luismesalas.storm.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Strips excluded characters from both ends of a token.
+ *
+ * Single char entries are compiled into a bitset and longer entries are indexed by their first and last char, so finding the token
+ * boundaries never scans the whole exclusion set and the trimmed token is built with a single substring.
+ */
+public final class TokenTrimmer {
+
+    private static final String[] NO_ENTRIES = new String[0];
+
+    private final BitSet singleChars = new BitSet();
+    private final Map<Character, String[]> entriesByFirstChar = new HashMap<Character, String[]>();
+    private final Map<Character, String[]> entriesByLastChar = new HashMap<Character, String[]>();
+
+    private TokenTrimmer() {
+    }
+
+    public static TokenTrimmer compile(Collection<String> charsToExclude) {
+	TokenTrimmer trimmer = new TokenTrimmer();
+	Map<Character, List<String>> byFirst = new HashMap<Character, List<String>>();
+	Map<Character, List<String>> byLast = new HashMap<Character, List<String>>();
+
+	for (String entry : charsToExclude) {
+	    if (entry == null || entry.isEmpty()) {
+		continue;
+	    }
+	    if (entry.length() == 1) {
+		trimmer.singleChars.set(entry.charAt(0));
+	    } else {
+		addEntry(byFirst, entry.charAt(0), entry);
+		addEntry(byLast, entry.charAt(entry.length() - 1), entry);
+	    }
+	}
+
+	for (Map.Entry<Character, List<String>> e : byFirst.entrySet()) {
+	    trimmer.entriesByFirstChar.put(e.getKey(), e.getValue().toArray(NO_ENTRIES));
+	}
+	for (Map.Entry<Character, List<String>> e : byLast.entrySet()) {
+	    trimmer.entriesByLastChar.put(e.getKey(), e.getValue().toArray(NO_ENTRIES));
+	}
+	return trimmer;
+    }
+
+    public String trim(String token) {
+	int end = trimEnd(token, 0, token.length());
+	int begin = trimBegin(token, 0, end);
+	return token.substring(begin, end);
+    }
+
+    /**
+     * Returns the new end of the {@code [begin, end)} region once trailing excluded chars are removed. As in the original tokenizer, one
+     * char is removed each time the region ends with an excluded entry.
+     */
+    public int trimEnd(CharSequence text, int begin, int end) {
+	while (end > begin && endsWithExcluded(text, begin, end)) {
+	    end--;
+	}
+	return end;
+    }
+
+    /**
+     * Returns the new begin of the {@code [begin, end)} region once leading excluded chars are removed.
+     */
+    public int trimBegin(CharSequence text, int begin, int end) {
+	while (begin < end && startsWithExcluded(text, begin, end)) {
+	    begin++;
+	}
+	return begin;
+    }
+
+    private boolean endsWithExcluded(CharSequence text, int begin, int end) {
+	char last = text.charAt(end - 1);
+	if (singleChars.get(last)) {
+	    return true;
+	}
+	String[] candidates = entriesByLastChar.get(last);
+	if (candidates != null) {
+	    for (String candidate : candidates) {
+		if (end - begin >= candidate.length() && regionMatches(text, end - candidate.length(), candidate)) {
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    private boolean startsWithExcluded(CharSequence text, int begin, int end) {
+	char first = text.charAt(begin);
+	if (singleChars.get(first)) {
+	    return true;
+	}
+	String[] candidates = entriesByFirstChar.get(first);
+	if (candidates != null) {
+	    for (String candidate : candidates) {
+		if (end - begin >= candidate.length() && regionMatches(text, begin, candidate)) {
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String candidate) {
+	for (int i = 0; i < candidate.length(); i++) {
+	    if (text.charAt(offset + i) != candidate.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static void addEntry(Map<Character, List<String>> index, char key, String entry) {
+	List<String> entries = index.get(key);
+	if (entries == null) {
+	    entries = new ArrayList<String>();
+	    index.put(key, entries);
+	}
+	entries.add(entry);
+    }
+
+}
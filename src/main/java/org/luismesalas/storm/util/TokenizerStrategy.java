@@ -0,0 +1,47 @@
+package org.luismesalas.storm.util;
+
+/**
+ * How the documents of a language are split into tokens.
+ *
+ * Every language is split on whitespace and its stopwords are left out. Languages written without spaces between words also have their
+ * runs of Han, Kana, Hangul and Thai characters counted as overlapping character bigrams. Strategies are immutable and shared by every
+ * executor of a worker.
+ */
+public final class TokenizerStrategy {
+
+    private final String language;
+    private final boolean bigrams;
+    private final StopwordSet stopwords;
+
+    public TokenizerStrategy(String language, boolean bigrams, StopwordSet stopwords) {
+	this.language = language;
+	this.bigrams = bigrams;
+	this.stopwords = stopwords;
+    }
+
+    public String getLanguage() {
+	return language;
+    }
+
+    public boolean isBigrams() {
+	return bigrams;
+    }
+
+    public StopwordSet getStopwords() {
+	return stopwords;
+    }
+
+    /**
+     * @return true for the code points that are counted as bigrams
+     */
+    public static boolean isBigramCodePoint(int codePoint) {
+	if (codePoint < 0x0E00) {
+	    return false;
+	}
+	Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+	return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+		|| script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL
+		|| script == Character.UnicodeScript.THAI;
+    }
+
+}